@@ -0,0 +1,79 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.subtitles.entities.ColumnarSubtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the writer on large generated subtitles. The text is written to a channel that drops everything so only the
+ * formatting and the encoding are measured. To compare with an earlier implementation run the benchmark on both
+ * revisions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubRipWriterBenchmark {
+    @Param({"100000"})
+    private int subtitleCount;
+
+    @Param({"false", "true"})
+    private boolean plainText;
+
+    private Subtitles subtitles;
+
+    private WritableByteChannel channel;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        ColumnarSubtitles.Builder builder = new ColumnarSubtitles.Builder();
+
+        int time = 0;
+        for (int i = 0; i < subtitleCount; i++) {
+            int from = time + random.nextInt(500);
+            int to = from + 500 + random.nextInt(3000);
+            time = to;
+
+            builder.startSubtitle(from, to);
+            for (int j = 0; j < 1 + random.nextInt(2); j++) {
+                String line = random.nextInt(10) == 0 ? "<i>Строка " + i + "</i>" : "Some line of text " + i;
+                builder.addLine(line, 0, line.length());
+            }
+        }
+
+        subtitles = builder.build();
+        channel = new NullChannel();
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        SubRipWriter.write(subtitles, channel, plainText);
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer source) {
+            int result = source.remaining();
+            source.position(source.limit());
+            return result;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
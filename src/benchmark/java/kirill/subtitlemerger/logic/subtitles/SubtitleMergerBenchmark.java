@@ -0,0 +1,59 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.subtitles.entities.ColumnarSubtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the merger on large generated subtitles. The lower subtitles are shifted relative to the upper ones so there
+ * are many segments with lines from only one source, and the lines are taken from a small set so that there are many
+ * equal lines to compare. To compare with an earlier implementation run the benchmark on both revisions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubtitleMergerBenchmark {
+    @Param({"10000", "100000"})
+    private int subtitleCount;
+
+    private Subtitles upperSubtitles;
+
+    private Subtitles lowerSubtitles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        upperSubtitles = generateSubtitles(random, "upper");
+        lowerSubtitles = generateSubtitles(random, "lower");
+    }
+
+    private Subtitles generateSubtitles(Random random, String prefix) {
+        ColumnarSubtitles.Builder result = new ColumnarSubtitles.Builder();
+
+        int time = random.nextInt(1000);
+        for (int i = 0; i < subtitleCount; i++) {
+            int from = time + random.nextInt(500);
+            int to = from + 500 + random.nextInt(3000);
+            time = to;
+
+            result.startSubtitle(from, to);
+            for (int j = 0; j < 1 + random.nextInt(2); j++) {
+                String line = prefix + " line " + random.nextInt(1000);
+                result.addLine(line, 0, line.length());
+            }
+        }
+
+        return result.build();
+    }
+
+    @Benchmark
+    public Subtitles merge() throws InterruptedException {
+        return SubtitleMerger.mergeSubtitles(upperSubtitles, lowerSubtitles);
+    }
+}
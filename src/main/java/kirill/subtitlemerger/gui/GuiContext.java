@@ -4,11 +4,14 @@ import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableSet;
+import kirill.subtitlemerger.logic.LogicConstants;
 import kirill.subtitlemerger.logic.ffmpeg.Ffmpeg;
 import kirill.subtitlemerger.logic.ffmpeg.FfmpegException;
 import kirill.subtitlemerger.logic.ffmpeg.Ffprobe;
 import kirill.subtitlemerger.logic.settings.SettingType;
 import kirill.subtitlemerger.logic.settings.Settings;
+import kirill.subtitlemerger.logic.subtitles.MergeCache;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
@@ -43,6 +46,18 @@ public class GuiContext {
      */
     private ObservableSet<SettingType> missingSettings;
 
+    /**
+     * Is shared by all the subtitles loaded during the session so that the lines repeating across the files and the
+     * videos are stored only once. The interner stops creating entries by itself if they don't pay off, see
+     * LineInterner.
+     */
+    private LineInterner lineInterner;
+
+    /**
+     * Is shared by both tabs so that the subtitles merged for the preview are not merged again for the result.
+     */
+    private MergeCache mergeCache;
+
     public GuiContext() {
         ffprobe = getPackedFfprobe();
         ffmpeg = getPackedFfmpegFile();
@@ -50,6 +65,8 @@ public class GuiContext {
 
         settings = new Settings();
         missingSettings = getMissingSettings(settings);
+        lineInterner = new LineInterner();
+        mergeCache = new MergeCache();
     }
 
     private static Ffprobe getPackedFfprobe() {
@@ -158,7 +175,7 @@ public class GuiContext {
         }
 
         try {
-            return new Ffmpeg(ffmpegFile.getAbsoluteFile());
+            return new Ffmpeg(ffmpegFile.getAbsoluteFile(), LogicConstants.FFMPEG_MAX_PROCESS_COUNT);
         } catch (FfmpegException e) {
             log.error("incorrect path to ffmpeg: " + e.getCode() + ", console output " + e.getConsoleOutput());
             throw new IllegalStateException();
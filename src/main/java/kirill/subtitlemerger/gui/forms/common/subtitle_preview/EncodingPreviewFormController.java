@@ -66,7 +66,7 @@ public class EncodingPreviewFormController extends AbstractPreviewFormController
 
             return new PreviewInfo(
                     subtitlesAndInput,
-                    getSplitText(new String(subtitlesAndInput.getRawData(), subtitlesAndInput.getEncoding()))
+                    getSplitText(subtitlesAndInput.getText())
             );
         };
 
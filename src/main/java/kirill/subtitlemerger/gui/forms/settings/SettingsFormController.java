@@ -11,6 +11,7 @@ import kirill.subtitlemerger.gui.GuiConstants;
 import kirill.subtitlemerger.gui.GuiContext;
 import kirill.subtitlemerger.gui.common_controls.ActionResultLabel;
 import kirill.subtitlemerger.gui.common_controls.auto_complete.AutoCompleteTextField;
+import kirill.subtitlemerger.gui.forms.settings.controls.TextAndQuestionMark;
 import kirill.subtitlemerger.logic.LogicConstants;
 import kirill.subtitlemerger.logic.settings.MergeMode;
 import kirill.subtitlemerger.logic.settings.SettingType;
@@ -58,6 +59,12 @@ public class SettingsFormController {
     @FXML
     private CheckBox plainTextCheckBox;
 
+    @FXML
+    private TextAndQuestionMark snapPointsOfTimeQuestionMark;
+
+    @FXML
+    private CheckBox snapPointsOfTimeCheckBox;
+
     @FXML
     private ActionResultLabel actionResultLabel;
 
@@ -83,12 +90,20 @@ public class SettingsFormController {
         setMakeDefaultVisible(settings.getMergeMode() == MergeMode.ORIGINAL_VIDEOS);
         makeDefaultCheckBox.setSelected(settings.isMakeMergedStreamsDefault());
         plainTextCheckBox.setSelected(settings.isPlainTextSubtitles());
+        snapPointsOfTimeQuestionMark.setTooltipText(getSnapPointsOfTimeTooltip());
+        snapPointsOfTimeCheckBox.setSelected(settings.isSnapPointsOfTime());
 
         mergeModeToggleGroup.selectedToggleProperty().addListener(
                 observable -> mergeModeChanged(mergeModeToggleGroup.getSelectedToggle())
         );
     }
 
+    private static String getSnapPointsOfTimeTooltip() {
+        return "Subtitles that start or end within " + LogicConstants.SNAP_TOLERANCE_MILLIS + " milliseconds of each "
+                + "other will be treated as starting or ending at the same time. This way there will be fewer short "
+                + "subtitles in the result when the subtitles are timed slightly differently.";
+    }
+
     private void videosInProgressChanged(boolean videosInProgress) {
         if (videosInProgress) {
             settingsPane.setDisable(true);
@@ -256,6 +271,18 @@ public class SettingsFormController {
         }
     }
 
+    @FXML
+    private void snapPointsOfTimeClicked() {
+        boolean snapPointsOfTime = snapPointsOfTimeCheckBox.isSelected();
+        settings.saveCorrect(snapPointsOfTime, SettingType.SNAP_POINTS_OF_TIME);
+
+        if (snapPointsOfTime) {
+            actionResultLabel.setSuccess("Close points of time will be snapped together from now on");
+        } else {
+            actionResultLabel.setSuccess("Points of time will be kept exactly as they are from now on");
+        }
+    }
+
     public SettingsFormController() {
         makeDefaultVisible = new SimpleBooleanProperty(false);
     }
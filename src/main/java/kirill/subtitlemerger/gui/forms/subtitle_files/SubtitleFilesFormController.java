@@ -17,8 +17,8 @@ import kirill.subtitlemerger.gui.utils.entities.FileOrigin;
 import kirill.subtitlemerger.logic.LogicConstants;
 import kirill.subtitlemerger.logic.settings.SettingType;
 import kirill.subtitlemerger.logic.settings.Settings;
-import kirill.subtitlemerger.logic.subtitles.SubRipWriter;
-import kirill.subtitlemerger.logic.subtitles.SubtitleMerger;
+import kirill.subtitlemerger.logic.subtitles.MergeCache;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormat;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndInput;
@@ -32,7 +32,6 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.Nullable;
@@ -40,7 +39,6 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -89,13 +87,16 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
     private InputSubtitlesInfo lowerSubtitlesInfo;
 
     /*
-     * Unlike with input subtitles, information regarding merged subtitles should be split between two variables
-     * because subtitles can be merged without selecting a file to write the result to (through the preview) and vice
-     * verse - selecting a file doesn't affect the merged subtitles themselves.
+     * Unlike with input subtitles, information regarding merged subtitles contains only the file because subtitles can
+     * be merged without selecting a file to write the result to (through the preview) and vice verse - selecting a file
+     * doesn't affect the merged subtitles themselves. The merged subtitles are kept in the merge cache so they are not
+     * merged again for the same input subtitles.
      */
     private MergedSubtitlesFileInfo mergedSubtitlesFileInfo;
 
-    private Subtitles mergedSubtitles;
+    private LineInterner lineInterner;
+
+    private MergeCache mergeCache;
 
     /*
      * We need this special flag because otherwise the popup window will be shown twice if we change the value and press
@@ -107,6 +108,8 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
     public void initialize(Stage stage, GuiContext context) {
         this.stage = stage;
         settings = context.getSettings();
+        lineInterner = context.getLineInterner();
+        mergeCache = context.getMergeCache();
 
         GuiUtils.setTextEnteredHandler(
                 upperPathField,
@@ -140,7 +143,6 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
             if (fileOrigin == FileOrigin.FILE_CHOOSER && subtitleInfo != null) {
                 saveDirectoryInSettings(subtitleInfo.getFile(), subtitleType.getBroaderType(), settings);
             }
-            mergedSubtitles = null;
 
             updateScene(fileOrigin);
         };
@@ -198,7 +200,7 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
                 fileOrigin,
                 null,
                 isDuplicate(fileInfo.getFile(), subtitleType),
-                SubtitlesAndInput.from(fileInfo.getContent(), StandardCharsets.UTF_8)
+                SubtitlesAndInput.fromUnknownEncoding(fileInfo.getContent(), lineInterner)
         );
     }
 
@@ -403,8 +405,8 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
         }
 
         if (subtitleInfo.incorrectFormat()) {
-            return "Subtitles in '" + shortenedPath + "'can't be parsed, it can happen if a file is not UTF-8-encoded; "
-                    + "you can change the encoding after pressing the preview button";
+            return "Subtitles in '" + shortenedPath + "' can't be parsed in any of the supported encodings; you can see "
+                    + "the text after pressing the preview button";
         }
 
         return null;
@@ -549,7 +551,6 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
 
     @FXML
     private void upperPreviewClicked() {
-        Charset previousEncoding = upperSubtitlesInfo.getEncoding();
         SubtitlesAndInput previewSelection = Popups.showEncodingPreview(
                 Utils.getShortenedString(upperSubtitlesInfo.getPath(), 0, 64),
                 upperSubtitlesInfo.getSubtitlesAndInput(),
@@ -557,9 +558,6 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
         );
 
         upperSubtitlesInfo.setSubtitlesAndInput(previewSelection);
-        if (!Objects.equals(previousEncoding, previewSelection.getEncoding())) {
-            mergedSubtitles = null;
-        }
         updateScene(upperSubtitlesInfo.getFileOrigin());
     }
 
@@ -609,7 +607,6 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
 
     @FXML
     private void lowerPreviewClicked() {
-        Charset previousEncoding = lowerSubtitlesInfo.getEncoding();
         clearState();
 
         SubtitlesAndInput previewSelection = Popups.showEncodingPreview(
@@ -619,9 +616,6 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
         );
 
         lowerSubtitlesInfo.setSubtitlesAndInput(previewSelection);
-        if (!Objects.equals(previousEncoding, previewSelection.getEncoding())) {
-            mergedSubtitles = null;
-        }
         updateScene(lowerSubtitlesInfo.getFileOrigin());
     }
 
@@ -640,39 +634,32 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
     private void mergedPreviewClicked() {
         clearState();
 
-        BackgroundRunner<SubtitlesAndOutput> backgroundRunner = backgroundManager -> {
-            if (mergedSubtitles != null) {
-                return SubtitlesAndOutput.from(mergedSubtitles, settings.isPlainTextSubtitles());
-            }
-
+        BackgroundRunner<String> backgroundRunner = backgroundManager -> {
             backgroundManager.setCancelPossible(true);
             backgroundManager.setIndeterminateProgress();
             backgroundManager.updateMessage("Merging the subtitles...");
             try {
-                return SubtitlesAndOutput.from(
-                        SubtitleMerger.mergeSubtitles(
-                                upperSubtitlesInfo.getSubtitles(),
-                                lowerSubtitlesInfo.getSubtitles()
-                        ),
+                return mergeCache.getMerged(
+                        upperSubtitlesInfo.getSubtitles(),
+                        lowerSubtitlesInfo.getSubtitles(),
+                        settings.isSnapPointsOfTime(),
                         settings.isPlainTextSubtitles()
-                );
+                ).getText();
             } catch (InterruptedException e) {
                 return null;
             }
         };
 
-        BackgroundCallback<SubtitlesAndOutput> callback = subtitlesAndOutput -> {
-            if (subtitlesAndOutput == null) {
+        BackgroundCallback<String> callback = mergedText -> {
+            if (mergedText == null) {
                 totalResultLabel.setWarning("Merging has been canceled");
                 return;
             }
 
-            mergedSubtitles = subtitlesAndOutput.getSubtitles();
-
             Popups.showMergedSubtitlesPreview(
                     upperSubtitlesInfo.getPath(),
                     lowerSubtitlesInfo.getPath(),
-                    subtitlesAndOutput.getText(),
+                    mergedText,
                     stage
             );
         };
@@ -712,18 +699,19 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
         clearState();
 
         BackgroundRunner<ActionResult> backgroundRunner = backgroundManager -> {
-            if (mergedSubtitles == null) {
-                backgroundManager.setCancelPossible(true);
-                backgroundManager.setIndeterminateProgress();
-                backgroundManager.updateMessage("Merging the subtitles...");
-                try {
-                    mergedSubtitles = SubtitleMerger.mergeSubtitles(
-                            upperSubtitlesInfo.getSubtitles(),
-                            lowerSubtitlesInfo.getSubtitles()
-                    );
-                } catch (InterruptedException e) {
-                    return ActionResult.warning("Merging has been canceled");
-                }
+            SubtitlesAndOutput merged;
+            backgroundManager.setCancelPossible(true);
+            backgroundManager.setIndeterminateProgress();
+            backgroundManager.updateMessage("Merging the subtitles...");
+            try {
+                merged = mergeCache.getMerged(
+                        upperSubtitlesInfo.getSubtitles(),
+                        lowerSubtitlesInfo.getSubtitles(),
+                        settings.isSnapPointsOfTime(),
+                        settings.isPlainTextSubtitles()
+                );
+            } catch (InterruptedException e) {
+                return ActionResult.warning("Merging has been canceled");
             }
 
             try {
@@ -731,11 +719,7 @@ public class SubtitleFilesFormController extends BackgroundTaskFormController {
                 backgroundManager.setIndeterminateProgress();
                 backgroundManager.updateMessage("Writing the result...");
 
-                FileUtils.writeStringToFile(
-                        mergedSubtitlesFileInfo.getFile(),
-                        SubRipWriter.toText(mergedSubtitles, settings.isPlainTextSubtitles()),
-                        StandardCharsets.UTF_8
-                );
+                merged.write(mergedSubtitlesFileInfo.getFile());
 
                 return ActionResult.success("The subtitles have been merged successfully!");
             } catch (IOException e) {
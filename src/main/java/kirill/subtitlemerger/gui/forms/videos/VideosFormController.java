@@ -27,6 +27,8 @@ import kirill.subtitlemerger.logic.settings.SettingType;
 import kirill.subtitlemerger.logic.settings.Settings;
 import kirill.subtitlemerger.logic.settings.SortBy;
 import kirill.subtitlemerger.logic.settings.SortDirection;
+import kirill.subtitlemerger.logic.subtitles.MergeCache;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndInput;
 import kirill.subtitlemerger.logic.utils.Utils;
 import kirill.subtitlemerger.logic.utils.entities.MultiPartActionResult;
@@ -113,6 +115,10 @@ public class VideosFormController extends BackgroundTaskFormController {
 
     private Ffmpeg ffmpeg;
 
+    private LineInterner lineInterner;
+
+    private MergeCache mergeCache;
+
     private Settings settings;
 
     private String directoryPath;
@@ -141,6 +147,8 @@ public class VideosFormController extends BackgroundTaskFormController {
         ffprobe = context.getFfprobe();
         ffmpeg = context.getFfmpeg();
         settings = context.getSettings();
+        lineInterner = context.getLineInterner();
+        mergeCache = context.getMergeCache();
 
         missingSettingsFormController.initialize(this, context);
         choiceFormController.initialize(this, stage, context);
@@ -315,7 +323,12 @@ public class VideosFormController extends BackgroundTaskFormController {
         }
         settings.saveQuietly(subtitleFile.getParentFile(), SettingType.LAST_DIRECTORY_WITH_VIDEO_SUBTITLES);
 
-        ProcessSubtitleFileRunner backgroundRunner = new ProcessSubtitleFileRunner(subtitleFile, video, tableVideo);
+        ProcessSubtitleFileRunner backgroundRunner = new ProcessSubtitleFileRunner(
+                subtitleFile,
+                video,
+                tableVideo,
+                lineInterner
+        );
 
         BackgroundCallback<ProcessSubtitleFileRunner.Result> callback = runnerResult -> {
             tableVideo.setActionResult(runnerResult.getActionResult());
@@ -385,7 +398,7 @@ public class VideosFormController extends BackgroundTaskFormController {
             backgroundManager.updateMessage(action);
             try {
                 BuiltInSubtitleOption option = video.getBuiltInOption(tableOption.getId());
-                LoadSubtitlesResult loadResult = loadSubtitles(option, video, tableOption, ffmpeg);
+                LoadSubtitlesResult loadResult = loadSubtitles(option, video, tableOption, ffmpeg, lineInterner);
                 if (loadResult == LoadSubtitlesResult.SUCCESS) {
                     return MultiPartActionResult.onlySuccess("The subtitles have been loaded successfully");
                 } else if (loadResult == LoadSubtitlesResult.INCORRECT_FORMAT) {
@@ -439,7 +452,7 @@ public class VideosFormController extends BackgroundTaskFormController {
                     String action = "Loading " + tableOption.getTitle() + " in " + video.getFile().getName() + "...";
                     backgroundManager.updateMessage(getProgressAction(processedCount, toLoadCount, action));
 
-                    LoadSubtitlesResult loadResult = loadSubtitles(option, video, tableOption, ffmpeg);
+                    LoadSubtitlesResult loadResult = loadSubtitles(option, video, tableOption, ffmpeg, lineInterner);
                     if (loadResult == LoadSubtitlesResult.SUCCESS) {
                         successfulCount++;
                     } else if (loadResult == LoadSubtitlesResult.INCORRECT_FORMAT) {
@@ -486,7 +499,7 @@ public class VideosFormController extends BackgroundTaskFormController {
         if (option instanceof BuiltInSubtitleOption) {
             String title = Utils.getShortenedString(video.getFile().getName(), 0, 64)
                     + ", " + Utils.getShortenedString(tableOption.getTitle(), 64, 0);
-            String subtitleText = new String(subtitlesAndInput.getRawData(), subtitlesAndInput.getEncoding());
+            String subtitleText = subtitlesAndInput.getText();
             Popups.showSimpleSubtitlesPreview(title, subtitleText, stage);
         } else if (option instanceof ExternalSubtitleOption) {
             ExternalSubtitleOption externalOption = (ExternalSubtitleOption) option;
@@ -514,7 +527,14 @@ public class VideosFormController extends BackgroundTaskFormController {
 
         Video video = Video.getById(tableVideo.getId(), allVideos);
 
-        MergedPreviewRunner mergedPreviewRunner = new MergedPreviewRunner(video, tableVideo, ffmpeg, settings);
+        MergedPreviewRunner mergedPreviewRunner = new MergedPreviewRunner(
+                video,
+                tableVideo,
+                ffmpeg,
+                lineInterner,
+                mergeCache,
+                settings
+        );
 
         BackgroundCallback<MergedPreviewRunner.Result> callback = runnerResult -> {
             if (runnerResult == null) {
@@ -706,7 +726,13 @@ public class VideosFormController extends BackgroundTaskFormController {
         totalResultPane.clear();
         lastProcessedVideo = null;
 
-        AutoSelectRunner backgroundRunner = new AutoSelectRunner(table.getItems(), allVideos, ffmpeg, settings);
+        AutoSelectRunner backgroundRunner = new AutoSelectRunner(
+                table.getItems(),
+                allVideos,
+                ffmpeg,
+                lineInterner,
+                settings
+        );
         BackgroundCallback<MultiPartActionResult> callback = totalResultPane::setActionResult;
         runInBackground(backgroundRunner, callback);
     }
@@ -716,7 +742,12 @@ public class VideosFormController extends BackgroundTaskFormController {
         totalResultPane.clear();
         lastProcessedVideo = null;
 
-        AllSubtitlesLoader backgroundRunner = new AllSubtitlesLoader(table.getItems(), allVideos, ffmpeg);
+        AllSubtitlesLoader backgroundRunner = new AllSubtitlesLoader(
+                table.getItems(),
+                allVideos,
+                ffmpeg,
+                lineInterner
+        );
         BackgroundCallback<MultiPartActionResult> callback = totalResultPane::setActionResult;
         runInBackground(backgroundRunner, callback);
     }
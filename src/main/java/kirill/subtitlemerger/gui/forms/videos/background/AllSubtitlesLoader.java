@@ -7,6 +7,7 @@ import kirill.subtitlemerger.gui.forms.videos.table.TableVideo;
 import kirill.subtitlemerger.gui.utils.background.BackgroundManager;
 import kirill.subtitlemerger.gui.utils.background.BackgroundRunner;
 import kirill.subtitlemerger.logic.ffmpeg.Ffmpeg;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.utils.Utils;
 import kirill.subtitlemerger.logic.utils.entities.MultiPartActionResult;
 import kirill.subtitlemerger.logic.videos.entities.BuiltInSubtitleOption;
@@ -29,6 +30,8 @@ public class AllSubtitlesLoader implements BackgroundRunner<MultiPartActionResul
 
     private Ffmpeg ffmpeg;
 
+    private LineInterner lineInterner;
+
     @Override
     public MultiPartActionResult run(BackgroundManager backgroundManager) {
         backgroundManager.setCancelPossible(false);
@@ -70,7 +73,7 @@ public class AllSubtitlesLoader implements BackgroundRunner<MultiPartActionResul
                     String action = "Loading " + tableOption.getTitle() + " in " + video.getFile().getName() + "...";
                     backgroundManager.updateMessage(getProgressAction(processedCount, toLoadCount, action));
 
-                    LoadSubtitlesResult loadResult = loadSubtitles(option, video, tableOption, ffmpeg);
+                    LoadSubtitlesResult loadResult = loadSubtitles(option, video, tableOption, ffmpeg, lineInterner);
                     if (loadResult == LoadSubtitlesResult.SUCCESS) {
                         successfulCount++;
                     } else if (loadResult == LoadSubtitlesResult.INCORRECT_FORMAT) {
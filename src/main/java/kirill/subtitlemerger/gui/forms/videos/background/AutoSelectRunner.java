@@ -8,6 +8,7 @@ import kirill.subtitlemerger.gui.utils.background.BackgroundManager;
 import kirill.subtitlemerger.gui.utils.background.BackgroundRunner;
 import kirill.subtitlemerger.logic.ffmpeg.Ffmpeg;
 import kirill.subtitlemerger.logic.settings.Settings;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.utils.Utils;
 import kirill.subtitlemerger.logic.utils.entities.MultiPartActionResult;
 import kirill.subtitlemerger.logic.videos.entities.BuiltInSubtitleOption;
@@ -34,6 +35,8 @@ public class AutoSelectRunner implements BackgroundRunner<MultiPartActionResult>
 
     private Ffmpeg ffmpeg;
 
+    private LineInterner lineInterner;
+
     private Settings settings;
 
     @Override
@@ -68,6 +71,7 @@ public class AutoSelectRunner implements BackgroundRunner<MultiPartActionResult>
                         tableVideo,
                         actionPrefix,
                         ffmpeg,
+                        lineInterner,
                         settings,
                         backgroundManager
                 );
@@ -99,6 +103,7 @@ public class AutoSelectRunner implements BackgroundRunner<MultiPartActionResult>
             TableVideo tableVideo,
             String actionPrefix,
             Ffmpeg ffmpeg,
+            LineInterner lineInterner,
             Settings settings,
             BackgroundManager backgroundManager
     ) throws InterruptedException {
@@ -123,7 +128,13 @@ public class AutoSelectRunner implements BackgroundRunner<MultiPartActionResult>
                     + "...";
             backgroundManager.updateMessage(action);
 
-            LoadSubtitlesResult loadResult = VideosBackgroundUtils.loadSubtitles(option, video, tableOption, ffmpeg);
+            LoadSubtitlesResult loadResult = VideosBackgroundUtils.loadSubtitles(
+                    option,
+                    video,
+                    tableOption,
+                    ffmpeg,
+                    lineInterner
+            );
             if (loadResult == LoadSubtitlesResult.INCORRECT_FORMAT) {
                 incorrectCount++;
             } else if (loadResult == LoadSubtitlesResult.FAILED) {
@@ -15,9 +15,9 @@ import kirill.subtitlemerger.logic.ffmpeg.Ffprobe;
 import kirill.subtitlemerger.logic.ffmpeg.json.JsonFfprobeVideoInfo;
 import kirill.subtitlemerger.logic.settings.MergeMode;
 import kirill.subtitlemerger.logic.settings.Settings;
-import kirill.subtitlemerger.logic.subtitles.SubtitleMerger;
+import kirill.subtitlemerger.logic.subtitles.MergeCache;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormat;
-import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndInput;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndOutput;
 import kirill.subtitlemerger.logic.utils.Utils;
@@ -32,7 +32,6 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.jetbrains.annotations.Nullable;
@@ -64,6 +63,10 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
 
     private Ffmpeg ffmpeg;
 
+    private LineInterner lineInterner;
+
+    private MergeCache mergeCache;
+
     private Settings settings;
 
     public MergeRunner(
@@ -79,6 +82,8 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
         this.largestFreeSpaceDirectory = largestFreeSpaceDirectory;
         ffprobe = context.getFfprobe();
         ffmpeg = context.getFfmpeg();
+        lineInterner = context.getLineInterner();
+        mergeCache = context.getMergeCache();
         settings = context.getSettings();
     }
 
@@ -157,6 +162,7 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
                 upperOption,
                 lowerOption,
                 actionPrefix,
+                mergeCache,
                 settings,
                 backgroundManager
         );
@@ -264,7 +270,13 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
                     + "...";
             backgroundManager.updateMessage(action);
 
-            LoadSubtitlesResult loadResult = VideosBackgroundUtils.loadSubtitles(option, video, tableOption, ffmpeg);
+            LoadSubtitlesResult loadResult = VideosBackgroundUtils.loadSubtitles(
+                    option,
+                    video,
+                    tableOption,
+                    ffmpeg,
+                    lineInterner
+            );
             if (loadResult == LoadSubtitlesResult.INCORRECT_FORMAT) {
                 incorrectCount++;
             } else if (loadResult == LoadSubtitlesResult.FAILED) {
@@ -289,13 +301,18 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
             SubtitleOption upperOption,
             SubtitleOption lowerOption,
             String actionPrefix,
+            MergeCache mergeCache,
             Settings settings,
             BackgroundManager backgroundManager
     ) throws InterruptedException {
         backgroundManager.updateMessage(actionPrefix + "merging the subtitles...");
 
-        Subtitles merged = SubtitleMerger.mergeSubtitles(upperOption.getSubtitles(), lowerOption.getSubtitles());
-        return SubtitlesAndOutput.from(merged, settings.isPlainTextSubtitles());
+        return mergeCache.getMerged(
+                upperOption.getSubtitles(),
+                lowerOption.getSubtitles(),
+                settings.isSnapPointsOfTime(),
+                settings.isPlainTextSubtitles()
+        );
     }
 
     @Nullable
@@ -318,7 +335,7 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
     ) throws InterruptedException, BreakIterationException {
         try {
             byte[] rawSubtitles = ffmpeg.getProcessedSubtitles(
-                    merged.getText(),
+                    merged,
                     SubtitleFormat.SUB_RIP.getFfmpegCodecs().get(0)
             );
             return new String(rawSubtitles, StandardCharsets.UTF_8);
@@ -353,7 +370,7 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
                 throw new IllegalStateException();
             }
 
-            String optionText = new String(optionSubtitlesAndInput.getRawData(), optionSubtitlesAndInput.getEncoding());
+            String optionText = optionSubtitlesAndInput.getText();
             if (Objects.equals(textToInject, optionText)) {
                 String warning = "Merging is not possible because the selected subtitles have already been merged";
                 Platform.runLater(() -> tableVideo.setOnlyWarning(warning));
@@ -536,7 +553,11 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
             BuiltInSubtitleOption result = newOptions.get(0);
 
             result.setSubtitlesAndInput(
-                    SubtitlesAndInput.from(injectedText.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)
+                    SubtitlesAndInput.from(
+                            injectedText.getBytes(StandardCharsets.UTF_8),
+                            StandardCharsets.UTF_8,
+                            lineInterner
+                    )
             );
 
             return result;
@@ -570,11 +591,7 @@ public class MergeRunner implements BackgroundRunner<MultiPartActionResult> {
         try {
             File subtitleFile = new File(Utils.getMergedSubtitleFilePath(video, upperOption, lowerOption));
 
-            FileUtils.writeStringToFile(
-                    subtitleFile,
-                    merged.getText(),
-                    StandardCharsets.UTF_8
-            );
+            merged.write(subtitleFile);
         } catch (IOException e) {
             log.warn("failed to save subtitles to file: " + ExceptionUtils.getStackTrace(e));
             String error = "Failed to write the result, probably there is no access to the file";
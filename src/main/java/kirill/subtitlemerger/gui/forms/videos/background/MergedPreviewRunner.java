@@ -6,9 +6,8 @@ import kirill.subtitlemerger.gui.utils.background.BackgroundManager;
 import kirill.subtitlemerger.gui.utils.background.BackgroundRunner;
 import kirill.subtitlemerger.logic.ffmpeg.Ffmpeg;
 import kirill.subtitlemerger.logic.settings.Settings;
-import kirill.subtitlemerger.logic.subtitles.SubRipWriter;
-import kirill.subtitlemerger.logic.subtitles.SubtitleMerger;
-import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.MergeCache;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.videos.entities.BuiltInSubtitleOption;
 import kirill.subtitlemerger.logic.videos.entities.SubtitleOption;
 import kirill.subtitlemerger.logic.videos.entities.Video;
@@ -32,6 +31,10 @@ public class MergedPreviewRunner implements BackgroundRunner<MergedPreviewRunner
 
     private Ffmpeg ffmpeg;
 
+    private LineInterner lineInterner;
+
+    private MergeCache mergeCache;
+
     private Settings settings;
 
     public Result run(BackgroundManager backgroundManager) {
@@ -42,15 +45,20 @@ public class MergedPreviewRunner implements BackgroundRunner<MergedPreviewRunner
         SubtitleOption lowerOption = video.getOption(tableVideo.getLowerOption().getId());
 
         try {
-            String loadError = loadSubtitles(video, tableVideo, ffmpeg, backgroundManager);
+            String loadError = loadSubtitles(video, tableVideo, ffmpeg, lineInterner, backgroundManager);
             if (!StringUtils.isBlank(loadError)) {
                 return new Result(loadError, null);
             }
 
             backgroundManager.updateMessage("Preview: merging the subtitles...");
-            Subtitles merged = SubtitleMerger.mergeSubtitles(upperOption.getSubtitles(), lowerOption.getSubtitles());
-
-            return new Result(null, SubRipWriter.toText(merged, settings.isPlainTextSubtitles()));
+            String mergedText = mergeCache.getMerged(
+                    upperOption.getSubtitles(),
+                    lowerOption.getSubtitles(),
+                    settings.isSnapPointsOfTime(),
+                    settings.isPlainTextSubtitles()
+            ).getText();
+
+            return new Result(null, mergedText);
         } catch (InterruptedException e) {
             return null;
         }
@@ -61,6 +69,7 @@ public class MergedPreviewRunner implements BackgroundRunner<MergedPreviewRunner
             Video video,
             TableVideo tableVideo,
             Ffmpeg ffmpeg,
+            LineInterner lineInterner,
             BackgroundManager backgroundManager
     ) throws InterruptedException {
         List<BuiltInSubtitleOption> optionsToLoad = getOptionsToLoad(video, tableVideo);
@@ -83,7 +92,13 @@ public class MergedPreviewRunner implements BackgroundRunner<MergedPreviewRunner
             String action = "Preview: loading " + tableOption.getTitle() + " in " + video.getFile().getName() + "...";
             backgroundManager.updateMessage(action);
 
-            LoadSubtitlesResult loadResult = VideosBackgroundUtils.loadSubtitles(option, video, tableOption, ffmpeg);
+            LoadSubtitlesResult loadResult = VideosBackgroundUtils.loadSubtitles(
+                    option,
+                    video,
+                    tableOption,
+                    ffmpeg,
+                    lineInterner
+            );
             if (loadResult == LoadSubtitlesResult.INCORRECT_FORMAT) {
                 incorrectCount++;
             } else if (loadResult == LoadSubtitlesResult.FAILED) {
@@ -5,6 +5,7 @@ import kirill.subtitlemerger.gui.forms.videos.table.TableVideo;
 import kirill.subtitlemerger.gui.utils.background.BackgroundManager;
 import kirill.subtitlemerger.gui.utils.background.BackgroundRunner;
 import kirill.subtitlemerger.logic.LogicConstants;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormat;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndInput;
 import kirill.subtitlemerger.logic.utils.Utils;
@@ -21,7 +22,6 @@ import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.collections4.CollectionUtils;
 
 import java.io.File;
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Objects;
 
@@ -36,6 +36,8 @@ public class ProcessSubtitleFileRunner implements BackgroundRunner<ProcessSubtit
 
     private TableVideo tableVideo;
 
+    private LineInterner lineInterner;
+
     @Override
     public Result run(BackgroundManager backgroundManager) {
         backgroundManager.setCancelPossible(false);
@@ -46,7 +48,7 @@ public class ProcessSubtitleFileRunner implements BackgroundRunner<ProcessSubtit
                 .allowedExtensions(SubtitleFormat.SUB_RIP.getExtensions())
                 .allowEmpty(false)
                 .maxAllowedSize(LogicConstants.INPUT_SUBTITLE_FILE_LIMIT_MEGABYTES * 1024 * 1024L)
-                .loadContent(true)
+                .mapContent(true)
                 .build();
         InputFileInfo fileInfo = FileValidator.getInputFileInfo(subtitleFile.getAbsolutePath(), validationOptions);
 
@@ -59,7 +61,10 @@ public class ProcessSubtitleFileRunner implements BackgroundRunner<ProcessSubtit
             return new Result(MultiPartActionResult.onlyError(error), null, null);
         }
 
-        SubtitlesAndInput subtitlesAndInput = SubtitlesAndInput.from(fileInfo.getContent(), StandardCharsets.UTF_8);
+        SubtitlesAndInput subtitlesAndInput = SubtitlesAndInput.fromUnknownEncoding(
+                fileInfo.getMappedContent(),
+                lineInterner
+        );
         ExternalSubtitleOption option = new ExternalSubtitleOption(subtitleFile, subtitlesAndInput);
         TableSubtitleOption tableOption = TableSubtitleOption.createExternal(
                 option.getId(),
@@ -74,8 +79,8 @@ public class ProcessSubtitleFileRunner implements BackgroundRunner<ProcessSubtit
         MultiPartActionResult actionResult;
         if (!subtitlesAndInput.isCorrectFormat()) {
             actionResult = MultiPartActionResult.onlyWarning(
-                    "The file has been added but subtitles can't be parsed, it can happen if a file is not "
-                            + "UTF-8-encoded; you can change the encoding after pressing the preview button"
+                    "The file has been added but subtitles can't be parsed in any of the supported encodings; you "
+                            + "can see the text after pressing the preview button"
             );
         } else {
             actionResult = MultiPartActionResult.onlySuccess("The file with subtitles has been added successfully");
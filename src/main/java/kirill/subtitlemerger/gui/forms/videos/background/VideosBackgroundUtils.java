@@ -13,6 +13,7 @@ import kirill.subtitlemerger.logic.settings.Settings;
 import kirill.subtitlemerger.logic.settings.Sort;
 import kirill.subtitlemerger.logic.settings.SortBy;
 import kirill.subtitlemerger.logic.settings.SortDirection;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndInput;
 import kirill.subtitlemerger.logic.utils.Utils;
 import kirill.subtitlemerger.logic.utils.entities.MultiPartActionResult;
@@ -393,11 +394,16 @@ public class VideosBackgroundUtils {
             BuiltInSubtitleOption option,
             Video video,
             TableSubtitleOption tableOption,
-            Ffmpeg ffmpeg
+            Ffmpeg ffmpeg,
+            LineInterner lineInterner
     ) throws InterruptedException {
         try {
             byte[] rawSubtitles = ffmpeg.getSubtitles(option.getFfmpegIndex(), video.getFile());
-            SubtitlesAndInput subtitlesAndInput = SubtitlesAndInput.from(rawSubtitles, StandardCharsets.UTF_8);
+            SubtitlesAndInput subtitlesAndInput = SubtitlesAndInput.from(
+                    rawSubtitles,
+                    StandardCharsets.UTF_8,
+                    lineInterner
+            );
 
             option.setSubtitlesAndInput(subtitlesAndInput);
             if (subtitlesAndInput.isCorrectFormat()) {
@@ -16,6 +16,19 @@ public class LogicConstants {
 
     public static final int INPUT_SUBTITLE_FILE_LIMIT_MEGABYTES = 10;
 
+    /*
+     * The points of time of the subtitles that are not more than this number of milliseconds apart are snapped to one
+     * point before merging if the corresponding setting is on.
+     */
+    public static final int SNAP_TOLERANCE_MILLIS = 50;
+
+    /*
+     * The maximum number of ffmpeg processes that can run at the same time. Every process takes at least one core while
+     * it's demuxing the video, so there is no point in running more processes than there are cores. But the processes
+     * read whole video files, so with more than eight of them the disk becomes the bottleneck even if it's fast.
+     */
+    public static final int FFMPEG_MAX_PROCESS_COUNT = Integer.min(Runtime.getRuntime().availableProcessors(), 8);
+
     public static final List<LanguageAlpha3Code> ALLOWED_LANGUAGES = getAllowedLanguages();
 
     public static final List<Charset> ALLOWED_ENCODINGS = Arrays.asList(
@@ -1,48 +1,61 @@
 package kirill.subtitlemerger.logic.ffmpeg;
 
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormat;
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndOutput;
 import kirill.subtitlemerger.logic.utils.process.ProcessException;
 import kirill.subtitlemerger.logic.utils.process.ProcessRunner;
 import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 @CommonsLog
 public class Ffmpeg {
-    private static final File TEMP_SUBTITLE_FILE = new File(
-            SystemUtils.JAVA_IO_TMPDIR,
-            "subtitle_merger_temp." + SubtitleFormat.SUB_RIP.getExtensions().get(0)
-    );
+    private static final String TEMP_SUBTITLE_FILE_NAME = "subtitles." + SubtitleFormat.SUB_RIP.getExtensions().get(0);
 
-    private static final File TEMP_CLEAN_SUBTITLE_FILE = new File(
-            SystemUtils.JAVA_IO_TMPDIR,
-            "subtitle_merger_temp_clean." + SubtitleFormat.SUB_RIP.getExtensions().get(0)
-    );
+    private static final String TEMP_CLEAN_SUBTITLE_FILE_NAME = "subtitles_clean."
+            + SubtitleFormat.SUB_RIP.getExtensions().get(0);
 
     private File ffmpegFile;
 
     /*
-     * During a merge this class creates a temporary video file and it is usually removed in the finally block. However,
-     * when the main window is closed finally blocks aren't called so we have to remember this file and remove it in the
-     * close() method.
+     * Limits the number of ffmpeg processes running at the same time. Every call has its own temporary files so the
+     * calls can run concurrently, but every process reads or writes the whole file so there is no point in running too
+     * many of them.
      */
-    private File currentTempVideoFile;
+    private Semaphore processPermits;
+
+    /*
+     * Every call works in its own temporary directory and the merge also creates a temporary video file. They are
+     * usually removed in the finally blocks. However, when the main window is closed finally blocks aren't called so
+     * we have to remember these files and remove them in the close() method.
+     */
+    private Set<File> tempFiles;
+
+    public Ffmpeg(File ffmpegFile, int maxProcessCount) throws FfmpegException, InterruptedException {
+        if (maxProcessCount <= 0) {
+            log.error("incorrect maximum number of processes: " + maxProcessCount + ", most likely a bug");
+            throw new IllegalStateException();
+        }
 
-    public Ffmpeg(File ffmpegFile) throws FfmpegException, InterruptedException {
         validate(ffmpegFile);
 
         this.ffmpegFile = ffmpegFile;
+        processPermits = new Semaphore(maxProcessCount, true);
+        tempFiles = ConcurrentHashMap.newKeySet();
     }
 
     private static void validate(File ffmpegFile) throws FfmpegException, InterruptedException {
@@ -61,12 +74,24 @@ public class Ffmpeg {
         }
     }
 
-    /*
-     * Synchronized because we use one temporary file with subtitles.
-     */
-    public synchronized byte[] getSubtitles(
+    public byte[] getSubtitles(int ffmpegStreamIndex, File videoFile) throws FfmpegException, InterruptedException {
+        File tempDirectory = createTempDirectory();
+        try {
+            processPermits.acquire();
+            try {
+                return getSubtitles(ffmpegStreamIndex, videoFile, new File(tempDirectory, TEMP_SUBTITLE_FILE_NAME));
+            } finally {
+                processPermits.release();
+            }
+        } finally {
+            removeTempFile(tempDirectory);
+        }
+    }
+
+    private byte[] getSubtitles(
             int ffmpegStreamIndex,
-            File videoFile
+            File videoFile,
+            File tempSubtitleFile
     ) throws FfmpegException, InterruptedException {
         String consoleOutput;
         try {
@@ -80,7 +105,7 @@ public class Ffmpeg {
                             "0:" + ffmpegStreamIndex,
                             "-c",
                             "subrip", // A temporary solution until there is a full support of other codecs.
-                            TEMP_SUBTITLE_FILE.getAbsolutePath()
+                            tempSubtitleFile.getAbsolutePath()
                     )
             );
 
@@ -90,7 +115,7 @@ public class Ffmpeg {
         }
 
         try {
-            return FileUtils.readFileToByteArray(TEMP_SUBTITLE_FILE);
+            return FileUtils.readFileToByteArray(tempSubtitleFile);
         } catch (IOException e) {
             log.warn("failed to read subtitles from video: " + ExceptionUtils.getStackTrace(e));
             throw new FfmpegException(FfmpegException.Code.FAILED_TO_READ_TEMP_SUBTITLE_FILE, consoleOutput);
@@ -98,21 +123,42 @@ public class Ffmpeg {
     }
 
     /**
-     * This method takes an unprocessed text with subtitles and returns a version processed by ffmpeg. It's very
+     * This method takes unprocessed subtitles and returns a text version processed by ffmpeg. It's very
      * important since ffmpeg makes its own transformations and it's hard to guess which exactly. For example it
      * transforms <font face="Franklin Gothic Medium" size="63" color="#f4f4f4"> to
      * <font face="Franklin Gothic Medium"><font size="63"><font color="#f4f4f4">. So it's the most reliable way of
      * knowing how ffmpeg changes the text. Knowing that will help to check for duplicates before injecting.
      */
-    /*
-     * Synchronized because we use shared temporary files.
-     */
-    public synchronized byte[] getProcessedSubtitles(
-            String originalText,
+    public byte[] getProcessedSubtitles(
+            SubtitlesAndOutput subtitles,
             String codec
     ) throws FfmpegException, InterruptedException {
+        File tempDirectory = createTempDirectory();
         try {
-            FileUtils.writeStringToFile(TEMP_SUBTITLE_FILE, originalText, StandardCharsets.UTF_8);
+            processPermits.acquire();
+            try {
+                return getProcessedSubtitles(
+                        subtitles,
+                        codec,
+                        new File(tempDirectory, TEMP_SUBTITLE_FILE_NAME),
+                        new File(tempDirectory, TEMP_CLEAN_SUBTITLE_FILE_NAME)
+                );
+            } finally {
+                processPermits.release();
+            }
+        } finally {
+            removeTempFile(tempDirectory);
+        }
+    }
+
+    private byte[] getProcessedSubtitles(
+            SubtitlesAndOutput subtitles,
+            String codec,
+            File tempSubtitleFile,
+            File tempCleanSubtitleFile
+    ) throws FfmpegException, InterruptedException {
+        try {
+            subtitles.write(tempSubtitleFile);
         } catch (IOException e) {
             log.warn("failed to create temp subtitle file: " + ExceptionUtils.getStackTrace(e));
             throw new FfmpegException(FfmpegException.Code.FAILED_TO_CREATE_TEMP_SUBTITLE_FILE, null);
@@ -125,12 +171,12 @@ public class Ffmpeg {
                             ffmpegFile.getAbsolutePath(),
                             "-y",
                             "-i",
-                            TEMP_SUBTITLE_FILE.getAbsolutePath(),
+                            tempSubtitleFile.getAbsolutePath(),
                             "-map",
                             "0",
                             "-c",
                             codec,
-                            TEMP_CLEAN_SUBTITLE_FILE.getAbsolutePath()
+                            tempCleanSubtitleFile.getAbsolutePath()
                     )
             );
 
@@ -140,21 +186,36 @@ public class Ffmpeg {
         }
 
         try {
-            return FileUtils.readFileToByteArray(TEMP_CLEAN_SUBTITLE_FILE);
+            return FileUtils.readFileToByteArray(tempCleanSubtitleFile);
         } catch (IOException e) {
             log.warn("failed to read clean subtitles: " + ExceptionUtils.getStackTrace(e));
             throw new FfmpegException(FfmpegException.Code.FAILED_TO_READ_TEMP_SUBTITLE_FILE, consoleOutput);
         }
     }
 
-    /*
-     * Synchronized because we use one temporary file with subtitles.
-     */
-    public synchronized void injectSubtitlesToFile(
-            FfmpegInjectInfo injectInfo
+    public void injectSubtitlesToFile(FfmpegInjectInfo injectInfo) throws FfmpegException, InterruptedException {
+        File tempDirectory = createTempDirectory();
+        try {
+            processPermits.acquire();
+            try {
+                injectSubtitlesToFile(injectInfo, new File(tempDirectory, TEMP_SUBTITLE_FILE_NAME));
+            } finally {
+                processPermits.release();
+            }
+        } finally {
+            removeTempFile(tempDirectory);
+        }
+    }
+
+    private void injectSubtitlesToFile(
+            FfmpegInjectInfo injectInfo,
+            File tempSubtitleFile
     ) throws FfmpegException, InterruptedException {
         try {
-            FileUtils.writeStringToFile(TEMP_SUBTITLE_FILE, injectInfo.getSubtitles(), StandardCharsets.UTF_8);
+            /* The writer encodes the text in small parts instead of creating an array with all the bytes at once. */
+            try (Writer writer = Files.newBufferedWriter(tempSubtitleFile.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(injectInfo.getSubtitles());
+            }
         } catch (IOException e) {
             log.warn("failed to write merged subtitles to temporary file: " + ExceptionUtils.getStackTrace(e));
             throw new FfmpegException(FfmpegException.Code.FAILED_TO_CREATE_TEMP_SUBTITLE_FILE, null);
@@ -162,17 +223,26 @@ public class Ffmpeg {
 
         /*
          * Ffmpeg can't add subtitles on the fly. So we need to add subtitles to some temporary file and then rename it.
+         * The name is unique so that the calls for the same video or for the videos with the same names don't use the
+         * same temporary file. The original name goes at the end to keep the extension, ffmpeg chooses the format by it.
          */
-        File tempVideoFile = new File(
-                injectInfo.getTempVideoDirectory(),
-                "temp_" + injectInfo.getOriginalVideoFile().getName()
-        );
+        File tempVideoFile;
+        try {
+            tempVideoFile = Files.createTempFile(
+                    injectInfo.getTempVideoDirectory().toPath(),
+                    "temp_",
+                    "_" + injectInfo.getOriginalVideoFile().getName()
+            ).toFile();
+        } catch (IOException e) {
+            log.warn("failed to create temporary video file: " + ExceptionUtils.getStackTrace(e));
+            throw new FfmpegException(FfmpegException.Code.FAILED_TO_CREATE_TEMP_VIDEO, null);
+        }
+        tempFiles.add(tempVideoFile);
 
         try {
             String consoleOutput;
             try {
-                List<String> arguments = getArgumentsInjectToFile(injectInfo, tempVideoFile);
-                currentTempVideoFile = tempVideoFile;
+                List<String> arguments = getArgumentsInjectToFile(injectInfo, tempSubtitleFile, tempVideoFile);
                 consoleOutput = ProcessRunner.run(arguments);
             } catch (ProcessException e) {
                 throw new FfmpegException(FfmpegException.Code.PROCESS_FAILED, e.getConsoleOutput());
@@ -180,21 +250,22 @@ public class Ffmpeg {
 
             overwriteOriginalVideo(tempVideoFile, injectInfo.getOriginalVideoFile(), consoleOutput);
         } finally {
-            if (tempVideoFile.exists() && !tempVideoFile.delete()) {
-                log.warn("failed to delete the temporary video file " + tempVideoFile.getAbsolutePath());
-            }
-            currentTempVideoFile = null;
+            removeTempFile(tempVideoFile);
         }
     }
 
-    private List<String> getArgumentsInjectToFile(FfmpegInjectInfo injectInfo, File tempVideoFile) {
+    private List<String> getArgumentsInjectToFile(
+            FfmpegInjectInfo injectInfo,
+            File tempSubtitleFile,
+            File tempVideoFile
+    ) {
         List<String> result = new ArrayList<>();
 
         result.add(ffmpegFile.getAbsolutePath());
         result.add("-y");
 
         result.addAll(Arrays.asList("-i", injectInfo.getOriginalVideoFile().getAbsolutePath()));
-        result.addAll(Arrays.asList("-i", Ffmpeg.TEMP_SUBTITLE_FILE.getAbsolutePath()));
+        result.addAll(Arrays.asList("-i", tempSubtitleFile.getAbsolutePath()));
         result.addAll(Arrays.asList("-map", "0"));
         result.addAll(Arrays.asList("-map", "1"));
         result.addAll(Arrays.asList("-c", "copy"));
@@ -267,22 +338,40 @@ public class Ffmpeg {
         }
     }
 
+    private File createTempDirectory() throws FfmpegException {
+        File result;
+        try {
+            result = Files.createTempDirectory("subtitle_merger_").toFile();
+        } catch (IOException e) {
+            log.warn("failed to create temporary directory: " + ExceptionUtils.getStackTrace(e));
+            throw new FfmpegException(FfmpegException.Code.FAILED_TO_CREATE_TEMP_SUBTITLE_FILE, null);
+        }
+
+        tempFiles.add(result);
+
+        return result;
+    }
+
     /**
-     * This method removes all temporary files required by the class.
+     * Removes the temporary file or the temporary directory with everything inside it.
      */
-    public void close() {
-        if (TEMP_SUBTITLE_FILE.exists() && !TEMP_SUBTITLE_FILE.delete()) {
-            log.warn("failed to remove temporary subtitle file");
+    private void removeTempFile(File file) {
+        if (!FileUtils.deleteQuietly(file) && file.exists()) {
+            log.warn("failed to remove temporary file " + file.getAbsolutePath());
         }
 
-        if (TEMP_CLEAN_SUBTITLE_FILE.exists() && !TEMP_CLEAN_SUBTITLE_FILE.delete()) {
-            log.warn("failed to remove temporary clean subtitle file");
-        }
+        tempFiles.remove(file);
+    }
 
-        if (currentTempVideoFile != null && currentTempVideoFile.exists()) {
-            log.info("remove temporary video file before exit: " + currentTempVideoFile.getAbsolutePath());
-            if (!currentTempVideoFile.delete()) {
-                log.warn("failed to remove temporary video file " + currentTempVideoFile.getAbsolutePath());
+    /**
+     * This method removes all temporary files required by the class, including the ones of the calls that are still
+     * running.
+     */
+    public void close() {
+        for (File file : tempFiles) {
+            if (file.exists()) {
+                log.info("remove temporary file before exit: " + file.getAbsolutePath());
+                removeTempFile(file);
             }
         }
     }
@@ -17,6 +17,7 @@ public enum SettingType {
     MERGE_MODE("merge_mode", MergeMode.class),
     MAKE_MERGED_STREAMS_DEFAULT("make_merged_streams_default", Boolean.class),
     PLAIN_TEXT_SUBTITLES("plain_text_subtitles", Boolean.class),
+    SNAP_POINTS_OF_TIME("snap_points_of_time", Boolean.class),
     LAST_DIRECTORY_WITH_VIDEOS("last_directory_with_videos", File.class),
     LAST_DIRECTORY_WITH_VIDEO_SUBTITLES("last_directory_with_video_subtitles", File.class),
     SORT_BY("sort_by", SortBy.class),
@@ -79,6 +79,7 @@ public class Settings {
                 return mergeMode;
             case MAKE_MERGED_STREAMS_DEFAULT:
             case PLAIN_TEXT_SUBTITLES:
+            case SNAP_POINTS_OF_TIME:
                 if ("true".equals(string)) {
                     return true;
                 } else if ("false".equals(string)) {
@@ -126,6 +127,7 @@ public class Settings {
             case MERGE_MODE:
             case MAKE_MERGED_STREAMS_DEFAULT:
             case PLAIN_TEXT_SUBTITLES:
+            case SNAP_POINTS_OF_TIME:
             case SORT_BY:
             case SORT_DIRECTION:
                 /*
@@ -155,6 +157,7 @@ public class Settings {
         savedSettings.putIfAbsent(SORT_DIRECTION, SortDirection.ASCENDING);
         savedSettings.putIfAbsent(MAKE_MERGED_STREAMS_DEFAULT, false);
         savedSettings.putIfAbsent(PLAIN_TEXT_SUBTITLES, false);
+        savedSettings.putIfAbsent(SNAP_POINTS_OF_TIME, false);
     }
 
     public File getLastDirectoryWithUpperSubtitles() {
@@ -189,6 +192,10 @@ public class Settings {
         return Boolean.TRUE.equals(settings.get(PLAIN_TEXT_SUBTITLES));
     }
 
+    public boolean isSnapPointsOfTime() {
+        return Boolean.TRUE.equals(settings.get(SNAP_POINTS_OF_TIME));
+    }
+
     public File getLastDirectoryWithVideos() {
         return (File) settings.get(LAST_DIRECTORY_WITH_VIDEOS);
     }
@@ -264,6 +271,7 @@ public class Settings {
             case MERGE_MODE:
             case MAKE_MERGED_STREAMS_DEFAULT:
             case PLAIN_TEXT_SUBTITLES:
+            case SNAP_POINTS_OF_TIME:
             case SORT_BY:
             case SORT_DIRECTION:
                 return object.toString();
@@ -0,0 +1,257 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.LogicConstants;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Guesses the encoding of the subtitles among the allowed ones. All the encodings are tried at once on the ForkJoin
+ * pool, an encoding is rejected if there is a malformed byte sequence or the subtitles can't be parsed. The texts of
+ * the subtitles for the remaining encodings are scored by the characters they have - letters from the common alphabets
+ * score points while control characters, unexpected symbols, mixed scripts and unusual letter cases lose them.
+ */
+@CommonsLog
+public class EncodingDetector {
+    private static final int COMMON_LETTER_SCORE = 2;
+
+    private static final int OTHER_LETTER_SCORE = 1;
+
+    private static final int UPPER_CASE_INSIDE_WORD_PENALTY = 1;
+
+    private static final int UPPER_CASE_AFTER_LOWER_CASE_PENALTY = 3;
+
+    private static final int MIXED_SCRIPTS_PENALTY = 5;
+
+    private static final int SYMBOL_PENALTY = 2;
+
+    private static final int CONTROL_CHARACTER_PENALTY = 10;
+
+    private static final int DECODING_BUFFER_SIZE = 8192;
+
+    /**
+     * Returns the encodings in which the subtitles can be decoded and parsed, the most probable encoding goes first. If
+     * the scores are equal the encodings go in the same order as in LogicConstants.ALLOWED_ENCODINGS. The list is empty
+     * if the subtitles can't be parsed in any of the encodings.
+     */
+    public static List<Charset> getRankedEncodings(ByteBuffer rawData) {
+        return getRankedEncodings(SubRipIndex.from(rawData));
+    }
+
+    /**
+     * The same as getRankedEncodings(ByteBuffer) but uses the index that has been built before, the format is checked
+     * with the index the same way SubRipParser.validate(SubRipIndex, Charset) does it so the subtitles are correct in
+     * all the returned encodings.
+     */
+    public static List<Charset> getRankedEncodings(SubRipIndex index) {
+        List<Callable<EncodingScore>> tasks = new ArrayList<>();
+        for (Charset encoding : LogicConstants.ALLOWED_ENCODINGS) {
+            tasks.add(() -> getEncodingScore(index, encoding));
+        }
+
+        List<EncodingScore> encodingScores = new ArrayList<>();
+        try {
+            for (Future<EncodingScore> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                EncodingScore encodingScore = future.get();
+                if (encodingScore != null) {
+                    encodingScores.add(encodingScore);
+                }
+            }
+        } catch (ExecutionException e) {
+            log.error("failed to check the encoding: " + ExceptionUtils.getStackTrace(e) + ", most likely a bug");
+            throw new IllegalStateException();
+        } catch (InterruptedException e) {
+            log.error("the thread has been interrupted, that shouldn't happen, most likely a bug");
+            throw new IllegalStateException();
+        }
+
+        /* The sorting is stable so the original order is kept for the encodings with equal scores. */
+        return encodingScores.stream()
+                .sorted(Comparator.comparingLong(EncodingScore::getScore).reversed())
+                .map(EncodingScore::getEncoding)
+                .collect(toList());
+    }
+
+    /**
+     * Returns null if the raw data can't be decoded without errors or the subtitles can't be parsed. No subtitles are
+     * created, only the texts of the subtitles are decoded to be scored.
+     */
+    private static EncodingScore getEncodingScore(SubRipIndex index, Charset encoding) {
+        if (!index.isSuitableFor(encoding)) {
+            /* The same way as in SubRipParser.validate the text is converted to UTF-8 so that the index can be used. */
+            String text;
+            try {
+                text = getReportingDecoder(encoding).decode(index.getRawData().duplicate()).toString();
+            } catch (CharacterCodingException e) {
+                return null;
+            }
+
+            SubRipIndex utf8Index = SubRipIndex.from(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            EncodingScore utf8Score = getEncodingScore(utf8Index, StandardCharsets.UTF_8);
+            return utf8Score != null ? new EncodingScore(encoding, utf8Score.getScore()) : null;
+        }
+
+        if (!SubRipParser.validate(index, encoding).isCorrectFormat() || !isDecodable(index.getRawData(), encoding)) {
+            return null;
+        }
+
+        CharsetDecoder decoder = getReportingDecoder(encoding);
+
+        long score = 0;
+        for (int i = 0; i < index.getSubtitleCount(); i++) {
+            ByteBuffer text = index.getRawData().duplicate();
+            text.limit(index.getTextEnd(i)).position(index.getTextStarts()[i]);
+
+            try {
+                score += getTextScore(decoder.decode(text));
+            } catch (CharacterCodingException e) {
+                log.error("the whole raw data has been decoded without errors, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+
+        return new EncodingScore(encoding, score);
+    }
+
+    private static CharsetDecoder getReportingDecoder(Charset encoding) {
+        return encoding.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+    }
+
+    /**
+     * Decodes the raw data part by part so that the decoded text is never kept in memory as a whole.
+     */
+    private static boolean isDecodable(ByteBuffer rawData, Charset encoding) {
+        CharsetDecoder decoder = getReportingDecoder(encoding);
+        ByteBuffer bytes = rawData.duplicate();
+        CharBuffer characters = CharBuffer.allocate(DECODING_BUFFER_SIZE);
+
+        CoderResult result;
+        do {
+            characters.clear();
+            result = decoder.decode(bytes, characters, true);
+            if (result.isError()) {
+                return false;
+            }
+        } while (result.isOverflow());
+
+        characters.clear();
+        return !decoder.flush(characters).isError();
+    }
+
+    /**
+     * Scores the lines of the text, line breaks are not scored themselves and every line is scored as if it were
+     * preceded by a space.
+     */
+    private static long getTextScore(CharSequence text) {
+        long result = 0;
+
+        char previous = ' ';
+        for (int i = 0; i < text.length(); i++) {
+            char current = text.charAt(i);
+
+            if (current == '\n' || current == '\r') {
+                previous = ' ';
+                continue;
+            }
+
+            if (Character.isLetter(current)) {
+                result += isCommonLetter(current) ? COMMON_LETTER_SCORE : OTHER_LETTER_SCORE;
+
+                if (Character.isLetter(previous)) {
+                    if (Character.UnicodeScript.of(previous) != Character.UnicodeScript.of(current)) {
+                        result -= MIXED_SCRIPTS_PENALTY;
+                    }
+
+                    if (Character.isUpperCase(current)) {
+                        if (Character.isLowerCase(previous)) {
+                            result -= UPPER_CASE_AFTER_LOWER_CASE_PENALTY;
+                        } else {
+                            result -= UPPER_CASE_INSIDE_WORD_PENALTY;
+                        }
+                    }
+                }
+            } else if (isControlCharacter(current)) {
+                result -= CONTROL_CHARACTER_PENALTY;
+            } else if (isUnexpectedSymbol(current)) {
+                result -= SYMBOL_PENALTY;
+            }
+
+            previous = current;
+        }
+
+        return result;
+    }
+
+    /**
+     * Letters of the Latin alphabets (basic and with diacritics), Greek and Cyrillic without the rarely used letters.
+     */
+    private static boolean isCommonLetter(char character) {
+        return character < 0x180
+                || (character >= 0x386 && character <= 0x3CE)
+                || (character >= 0x401 && character <= 0x45F);
+    }
+
+    private static boolean isControlCharacter(char character) {
+        if (character == '\t') {
+            return false;
+        }
+
+        int type = Character.getType(character);
+        return type == Character.CONTROL
+                || type == Character.UNASSIGNED
+                || type == Character.PRIVATE_USE
+                || character == '\uFFFD';
+    }
+
+    /**
+     * Non-ASCII characters that are neither letters, nor whitespace, nor punctuation (quotes, dashes and so on).
+     */
+    private static boolean isUnexpectedSymbol(char character) {
+        if (character < 0x80 || Character.isWhitespace(character) || Character.isSurrogate(character)) {
+            return false;
+        }
+
+        switch (Character.getType(character)) {
+            case Character.SPACE_SEPARATOR:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    @AllArgsConstructor
+    @Getter
+    private static class EncodingScore {
+        private Charset encoding;
+
+        private long score;
+    }
+}
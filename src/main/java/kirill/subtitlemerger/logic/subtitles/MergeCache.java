@@ -0,0 +1,197 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.LogicConstants;
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndOutput;
+import kirill.subtitlemerger.logic.subtitles.entities.TextPool;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the results of the last merges because the same subtitles are often merged several times in a row (for the
+ * preview and then for the real merge for example). The merged subtitles are shared by both output formats, the text of
+ * a format is created when it's requested for the first time and is kept softly (see SubtitlesAndOutput) so the
+ * previews on cache hits don't create it again unless the memory has been needed. The results are found by the
+ * SHA-256 hashes of the contents of the subtitles so the subtitles that have been loaded again are found as well. The
+ * hash for the subtitles object is calculated only once because the subtitles can't be changed. The class is
+ * thread-safe, the subtitles are merged outside the lock so the same subtitles may be merged twice at the same time but
+ * that doesn't break anything.
+ */
+@CommonsLog
+public class MergeCache {
+    private static final int DEFAULT_MAX_ENTRY_COUNT = 4;
+
+    private int maxEntryCount;
+
+    private Map<Key, Entry> entries;
+
+    private Map<Subtitles, String> contentHashes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    public MergeCache() {
+        this(DEFAULT_MAX_ENTRY_COUNT);
+    }
+
+    public MergeCache(int maxEntryCount) {
+        this.maxEntryCount = maxEntryCount;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > MergeCache.this.maxEntryCount;
+            }
+        };
+        contentHashes = new WeakHashMap<>();
+    }
+
+    /**
+     * Returns the merged subtitles from the cache or merges the subtitles and puts the result to the cache.
+     */
+    public SubtitlesAndOutput getMerged(
+            Subtitles upperSubtitles,
+            Subtitles lowerSubtitles,
+            boolean snapPointsOfTime,
+            boolean plainText
+    ) throws InterruptedException {
+        Key key;
+        synchronized (this) {
+            key = new Key(getContentHash(upperSubtitles), getContentHash(lowerSubtitles), snapPointsOfTime);
+
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hitCount++;
+                log.debug("merge cache hit, " + getStatistics());
+                return entry.getOutput(plainText);
+            }
+
+            missCount++;
+        }
+
+        int snapToleranceMillis = snapPointsOfTime ? LogicConstants.SNAP_TOLERANCE_MILLIS : 0;
+        Subtitles merged = SubtitleMerger.mergeSubtitles(upperSubtitles, lowerSubtitles, snapToleranceMillis);
+
+        Entry entry = new Entry(merged);
+        synchronized (this) {
+            entries.put(key, entry);
+            log.debug("merge cache miss, " + getStatistics());
+
+            return entry.getOutput(plainText);
+        }
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(hitCount, missCount, entries.size());
+    }
+
+    private String getContentHash(Subtitles subtitles) {
+        return contentHashes.computeIfAbsent(subtitles, MergeCache::calculateContentHash);
+    }
+
+    private static String calculateContentHash(Subtitles subtitles) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+
+        ByteBuffer numbers = ByteBuffer.allocate(4 * Integer.BYTES);
+        numbers.putInt(subtitles.getSubtitleCount()).flip();
+        digest.update(numbers);
+
+        for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+            numbers.clear();
+            numbers.putInt(subtitles.getFromMillis(i)).putInt(subtitles.getToMillis(i));
+            numbers.putInt(subtitles.getLineCount(i)).flip();
+            digest.update(numbers);
+
+            TextPool textPool = subtitles.getTextPool(i);
+            for (int j = 0; j < subtitles.getLineCount(i); j++) {
+                int line = subtitles.getFirstLine(i) + j;
+
+                numbers.clear();
+                numbers.putInt(textPool.getLineLength(line)).flip();
+                digest.update(numbers);
+                digest.update(textPool.getLineBytes(line));
+            }
+        }
+
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @Getter
+    private static class Key {
+        private String upperHash;
+
+        private String lowerHash;
+
+        private boolean snapPointsOfTime;
+    }
+
+    /**
+     * The merged subtitles and the objects for both output formats, the objects are created when they are requested
+     * for the first time. The class is not thread-safe, it's used only under the lock of the cache.
+     */
+    private static class Entry {
+        private Subtitles merged;
+
+        private SubtitlesAndOutput plainTextOutput;
+
+        private SubtitlesAndOutput formattedOutput;
+
+        Entry(Subtitles merged) {
+            this.merged = merged;
+        }
+
+        SubtitlesAndOutput getOutput(boolean plainText) {
+            if (plainText) {
+                if (plainTextOutput == null) {
+                    plainTextOutput = SubtitlesAndOutput.from(merged, true);
+                }
+
+                return plainTextOutput;
+            } else {
+                if (formattedOutput == null) {
+                    formattedOutput = SubtitlesAndOutput.from(merged, false);
+                }
+
+                return formattedOutput;
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    @Getter
+    public static class Statistics {
+        private long hitCount;
+
+        private long missCount;
+
+        private int entryCount;
+
+        public double getHitRate() {
+            long lookupCount = hitCount + missCount;
+            return lookupCount != 0 ? (double) hitCount / lookupCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d hits, %d misses, hit rate %.1f%%, %d entries",
+                    hitCount,
+                    missCount,
+                    100 * getHitRate(),
+                    entryCount
+            );
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitle;
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.TextPool;
+import lombok.AllArgsConstructor;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.collections4.iterators.PeekingIterator;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.LocalTime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Merges the subtitles that are read one by one and passes the merged subtitles to the consumer as soon as they can't
+ * be changed anymore, so the memory doesn't depend on the size of the subtitles and the result can be written while
+ * the rest is still being merged. The subtitles of each source have to go in the order of their start times.
+ * The subtitles are buffered until there is a gap in time that isn't covered by any of the buffered subtitles and
+ * that the next subtitles start after. Nothing after such a gap can change the merged subtitles before it (see
+ * SubtitleMerger.merge), so the buffered subtitles are merged with SubtitleMerger and the result is the same as if all
+ * the subtitles were merged at once. If there are too many subtitles without a gap (for example a sign that is
+ * displayed for the whole video), the buffered subtitles are split at the start of the next subtitle instead. In this
+ * case the merged subtitles that are the same on both sides of the split are still combined but a jump at the split
+ * may be left unfixed.
+ */
+@CommonsLog
+public class StreamingSubtitleMerger {
+    private static final int MAX_BUFFERED_SUBTITLES = 4096;
+
+    public static void mergeSubtitles(
+            Iterator<Subtitle> upperSubtitles,
+            Iterator<Subtitle> lowerSubtitles,
+            SubtitleConsumer consumer
+    ) throws IOException, InterruptedException {
+        mergeSubtitles(Arrays.asList(upperSubtitles, lowerSubtitles), consumer);
+    }
+
+    /**
+     * The lines of the subtitles go from top to bottom in the order of the list.
+     */
+    public static void mergeSubtitles(
+            List<Iterator<Subtitle>> allSubtitles,
+            SubtitleConsumer consumer
+    ) throws IOException, InterruptedException {
+        mergeSubtitles(allSubtitles, consumer, MAX_BUFFERED_SUBTITLES);
+    }
+
+    static void mergeSubtitles(
+            List<Iterator<Subtitle>> allSubtitles,
+            SubtitleConsumer consumer,
+            int maxBufferedSubtitles
+    ) throws IOException, InterruptedException {
+        new Merge(allSubtitles, consumer, maxBufferedSubtitles).run();
+    }
+
+    private static class Merge {
+        private List<PeekingIterator<Subtitle>> sources;
+
+        private SubtitleConsumer consumer;
+
+        private int maxBufferedSubtitles;
+
+        private List<List<Subtitle>> buffers;
+
+        private int bufferedCount;
+
+        /*
+         * The number of the buffered subtitles after which the buffered subtitles are split even if there is no gap.
+         * Is increased after a split so that the subtitles covering the point of the split don't cause another split
+         * right away.
+         */
+        private int splitThreshold;
+
+        private int bufferedTo;
+
+        private int[] lastFroms;
+
+        /*
+         * The last merged subtitle is kept until the next one is ready because they may have to be combined if the
+         * buffered subtitles have been split between them.
+         */
+        @Nullable
+        private Subtitle lastMerged;
+
+        private boolean splitAfterLastMerged;
+
+        Merge(List<Iterator<Subtitle>> allSubtitles, SubtitleConsumer consumer, int maxBufferedSubtitles) {
+            sources = new ArrayList<>();
+            buffers = new ArrayList<>();
+            for (Iterator<Subtitle> subtitles : allSubtitles) {
+                sources.add(new PeekingIterator<>(subtitles));
+                buffers.add(new ArrayList<>());
+            }
+
+            this.consumer = consumer;
+            this.maxBufferedSubtitles = maxBufferedSubtitles;
+            splitThreshold = maxBufferedSubtitles;
+            lastFroms = new int[allSubtitles.size()];
+        }
+
+        void run() throws IOException, InterruptedException {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                int nextSource = -1;
+                int nextFrom = 0;
+                for (int source = 0; source < sources.size(); source++) {
+                    Subtitle subtitle = sources.get(source).peek();
+                    if (subtitle != null && (nextSource == -1 || getMillis(subtitle.getFrom()) < nextFrom)) {
+                        nextSource = source;
+                        nextFrom = getMillis(subtitle.getFrom());
+                    }
+                }
+
+                if (nextSource == -1) {
+                    break;
+                }
+
+                if (bufferedCount != 0) {
+                    if (nextFrom > bufferedTo) {
+                        mergeBuffered();
+                    } else if (bufferedCount >= splitThreshold) {
+                        splitAndMergeBuffered(nextFrom);
+                    }
+                }
+
+                Subtitle subtitle = sources.get(nextSource).next();
+                if (getMillis(subtitle.getFrom()) < lastFroms[nextSource]) {
+                    log.error("subtitles have to go in the order of their start times, most likely a bug");
+                    throw new IllegalStateException();
+                }
+                lastFroms[nextSource] = getMillis(subtitle.getFrom());
+
+                addToBuffer(nextSource, subtitle);
+            }
+
+            mergeBuffered();
+            if (lastMerged != null) {
+                consumer.accept(lastMerged);
+            }
+        }
+
+        private void addToBuffer(int source, Subtitle subtitle) {
+            buffers.get(source).add(subtitle);
+            bufferedCount++;
+            if (bufferedCount == 1 || getMillis(subtitle.getTo()) > bufferedTo) {
+                bufferedTo = getMillis(subtitle.getTo());
+            }
+        }
+
+        private void mergeBuffered() throws IOException, InterruptedException {
+            if (bufferedCount == 0) {
+                return;
+            }
+
+            List<Subtitles> allSubtitles = new ArrayList<>();
+            for (List<Subtitle> buffer : buffers) {
+                allSubtitles.add(new SubtitleListView(new ArrayList<>(buffer)));
+                buffer.clear();
+            }
+            bufferedCount = 0;
+            splitThreshold = maxBufferedSubtitles;
+
+            for (Subtitle subtitle : SubtitleMerger.mergeSubtitles(allSubtitles).getSubtitles()) {
+                accept(subtitle);
+            }
+        }
+
+        /**
+         * Merges the parts of the buffered subtitles before the given point of time and keeps the rest in the buffer.
+         */
+        private void splitAndMergeBuffered(int splitPoint) throws IOException, InterruptedException {
+            List<List<Subtitle>> rest = new ArrayList<>();
+            for (List<Subtitle> buffer : buffers) {
+                List<Subtitle> before = new ArrayList<>();
+                List<Subtitle> after = new ArrayList<>();
+                for (Subtitle subtitle : buffer) {
+                    int from = getMillis(subtitle.getFrom());
+                    int to = getMillis(subtitle.getTo());
+                    if (from >= splitPoint) {
+                        after.add(subtitle);
+                    } else if (to <= splitPoint) {
+                        before.add(subtitle);
+                    } else {
+                        before.add(withTime(subtitle, from, splitPoint));
+                        after.add(withTime(subtitle, splitPoint, to));
+                    }
+                }
+
+                buffer.clear();
+                buffer.addAll(before);
+                rest.add(after);
+            }
+
+            bufferedCount = buffers.stream().mapToInt(List::size).sum();
+            mergeBuffered();
+            splitAfterLastMerged = true;
+
+            for (int source = 0; source < buffers.size(); source++) {
+                for (Subtitle subtitle : rest.get(source)) {
+                    addToBuffer(source, subtitle);
+                }
+            }
+            splitThreshold = bufferedCount + maxBufferedSubtitles;
+        }
+
+        private void accept(Subtitle subtitle) throws IOException {
+            if (lastMerged != null) {
+                boolean canCombine = splitAfterLastMerged
+                        && getMillis(lastMerged.getTo()) == getMillis(subtitle.getFrom())
+                        && haveSameLines(lastMerged, subtitle);
+                if (canCombine) {
+                    lastMerged = new Subtitle(
+                            lastMerged.getFrom(),
+                            subtitle.getTo(),
+                            lastMerged.getTextPool(),
+                            lastMerged.getFirstLine(),
+                            lastMerged.getLineCount()
+                    );
+                    splitAfterLastMerged = false;
+                    return;
+                }
+
+                consumer.accept(lastMerged);
+            }
+
+            lastMerged = subtitle;
+            splitAfterLastMerged = false;
+        }
+    }
+
+    private static int getMillis(LocalTime time) {
+        return time.getMillisOfDay();
+    }
+
+    private static Subtitle withTime(Subtitle subtitle, int from, int to) {
+        return new Subtitle(
+                LocalTime.fromMillisOfDay(from),
+                LocalTime.fromMillisOfDay(to),
+                subtitle.getTextPool(),
+                subtitle.getFirstLine(),
+                subtitle.getLineCount()
+        );
+    }
+
+    private static boolean haveSameLines(Subtitle first, Subtitle second) {
+        if (first.getLineCount() != second.getLineCount()) {
+            return false;
+        }
+
+        TextPool firstPool = first.getTextPool();
+        TextPool secondPool = second.getTextPool();
+        for (int i = 0; i < first.getLineCount(); i++) {
+            if (!firstPool.lineEquals(first.getFirstLine() + i, secondPool, second.getFirstLine() + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @AllArgsConstructor
+    private static class SubtitleListView implements Subtitles {
+        private List<Subtitle> subtitles;
+
+        @Override
+        public int getSubtitleCount() {
+            return subtitles.size();
+        }
+
+        @Override
+        public int getFromMillis(int index) {
+            return getMillis(subtitles.get(index).getFrom());
+        }
+
+        @Override
+        public int getToMillis(int index) {
+            return getMillis(subtitles.get(index).getTo());
+        }
+
+        @Override
+        public TextPool getTextPool(int index) {
+            return subtitles.get(index).getTextPool();
+        }
+
+        @Override
+        public int getFirstLine(int index) {
+            return subtitles.get(index).getFirstLine();
+        }
+
+        @Override
+        public int getLineCount(int index) {
+            return subtitles.get(index).getLineCount();
+        }
+    }
+}
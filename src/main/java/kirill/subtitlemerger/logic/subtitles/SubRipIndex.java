@@ -0,0 +1,410 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The structure of SubRip subtitles found on the byte level - where the subtitles begin, their time ranges and where
+ * their texts are. In ASCII-compatible encodings (ASCII characters are encoded with the same single bytes and other
+ * bytes are never decoded to ASCII characters) line breaks, numbers and time ranges are at the same offsets whatever
+ * the encoding is. So the index can be built once for the raw data and then subtitles for any such encoding can be
+ * obtained by decoding only the texts of the subtitles, see SubRipParser.from(SubRipIndex, Charset).
+ */
+@Getter(AccessLevel.PACKAGE)
+public class SubRipIndex {
+    /**
+     * Is set in the flags if the line with the subtitle number has non-ASCII characters and thus has to be decoded to
+     * be checked (for example there are digits other than ASCII ones).
+     */
+    static final byte UNDECIDED_NUMBER = 1;
+
+    /**
+     * Is set in the flags if the blank line before the subtitle has non-ASCII characters and thus has to be decoded to
+     * be checked (there are whitespace characters other than ASCII ones).
+     */
+    static final byte UNDECIDED_BLANK = 2;
+
+    private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+    private static final Map<Charset, Boolean> ASCII_COMPATIBILITY = new ConcurrentHashMap<>();
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private ByteBuffer rawData;
+
+    /* If the raw data starts with the UTF-8 BOM the index can be used only for UTF-8. */
+    private boolean utf8Bom;
+
+    /*
+     * If the first line has non-ASCII characters whether it contains a number (and whether the whole text is blank)
+     * depends on the encoding.
+     */
+    private boolean undecidedFirstLine;
+
+    private int firstLineEnd;
+
+    /* The beginning of the text without the BOM and the whitespace at the start. */
+    private int start;
+
+    /* The end of the text without the whitespace at the end. */
+    private int end;
+
+    /* Whether the subtitles have an incorrect format in any ASCII-compatible encoding. */
+    private boolean incorrect;
+
+    /*
+     * The beginning of the line where the sequential parsing would find the error (if the format is incorrect), the
+     * subtitles before this line are still added to the index.
+     */
+    private int errorOffset;
+
+    private int subtitleCount;
+
+    private long[] timeRanges;
+
+    /* The beginnings of the blank lines before the subtitles (-1 for the first subtitle). */
+    private int[] blankLineStarts;
+
+    private int[] numberLineStarts;
+
+    private int[] timeLineStarts;
+
+    /* The beginnings of the subtitle texts, they end where the blank line before the next subtitle begins. */
+    private int[] textStarts;
+
+    private byte[] flags;
+
+    private SubRipIndex(ByteBuffer rawData) {
+        this.rawData = rawData;
+        this.timeRanges = new long[INITIAL_CAPACITY];
+        this.blankLineStarts = new int[INITIAL_CAPACITY];
+        this.numberLineStarts = new int[INITIAL_CAPACITY];
+        this.timeLineStarts = new int[INITIAL_CAPACITY];
+        this.textStarts = new int[INITIAL_CAPACITY];
+        this.flags = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Builds the index for the raw data, it doesn't decode anything. The buffer's position is not changed and the
+     * buffer shouldn't be modified afterwards.
+     */
+    public static SubRipIndex from(ByteBuffer rawData) {
+        SubRipIndex result = new SubRipIndex(rawData.slice());
+        ByteBuffer data = result.rawData;
+
+        result.utf8Bom = startsWithUtf8Bom(data);
+
+        int start = result.utf8Bom ? UTF_8_BOM.length : 0;
+        int end = data.limit();
+        while (start < end && getUnsigned(data, start) <= ' ') {
+            start++;
+        }
+        while (end > start && getUnsigned(data, end - 1) <= ' ') {
+            end--;
+        }
+        result.start = start;
+        result.end = end;
+
+        if (start == end) {
+            return result;
+        }
+
+        result.addSubtitles();
+
+        return result;
+    }
+
+    private static boolean startsWithUtf8Bom(ByteBuffer data) {
+        if (data.limit() < UTF_8_BOM.length) {
+            return false;
+        }
+
+        for (int i = 0; i < UTF_8_BOM.length; i++) {
+            if (data.get(i) != UTF_8_BOM[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int getUnsigned(ByteBuffer data, int index) {
+        return data.get(index) & 0xFF;
+    }
+
+    /**
+     * Goes through the lines the same way SubRipParser does it and adds the subtitles until the format turns out to be
+     * incorrect in any ASCII-compatible encoding.
+     */
+    private void addSubtitles() {
+        int lineStart = start;
+        int lineEnd = getLineEnd(lineStart);
+        firstLineEnd = lineEnd;
+        undecidedFirstLine = !isAscii(lineStart, lineEnd);
+
+        /* We need at least two lines - one should contain a number and the other a time range. */
+        if (lineEnd == end) {
+            setError(end);
+            return;
+        }
+
+        if (!undecidedFirstLine && !SubRipParser.isSubtitleNumber(getAsciiString(lineStart, lineEnd))) {
+            setError(lineStart);
+            return;
+        }
+        int numberLineStart = lineStart;
+
+        lineStart = getNextLineStart(lineEnd);
+        lineEnd = getLineEnd(lineStart);
+        long timeRange = scanTimeRange(lineStart, lineEnd);
+        if (timeRange < 0) {
+            setError(lineStart);
+            return;
+        }
+        addSubtitle(timeRange, -1, numberLineStart, lineStart, getNextLineStart(lineEnd), (byte) 0);
+
+        int linesAfterTimeRange = 0;
+        int previousLineStart = -1;
+        int previousLineEnd = -1;
+        int secondPreviousLineStart;
+        int secondPreviousLineEnd;
+        while (lineEnd != end) {
+            secondPreviousLineStart = previousLineStart;
+            secondPreviousLineEnd = previousLineEnd;
+            previousLineStart = lineStart;
+            previousLineEnd = lineEnd;
+            lineStart = getNextLineStart(lineEnd);
+            lineEnd = getLineEnd(lineStart);
+
+            timeRange = scanTimeRange(lineStart, lineEnd);
+            if (timeRange == SubRipParser.INCORRECT_TIME_RANGE) {
+                setError(lineStart);
+                return;
+            }
+
+            if (timeRange == SubRipParser.NOT_TIME_RANGE) {
+                linesAfterTimeRange++;
+                continue;
+            }
+
+            /* The last two lines should be a blank line and a line with a number. */
+            if (linesAfterTimeRange < 2) {
+                setError(lineStart);
+                return;
+            }
+
+            byte subtitleFlags = 0;
+            if (!isAscii(secondPreviousLineStart, secondPreviousLineEnd)) {
+                subtitleFlags |= UNDECIDED_BLANK;
+            } else if (!StringUtils.isBlank(getAsciiString(secondPreviousLineStart, secondPreviousLineEnd))) {
+                setError(lineStart);
+                return;
+            }
+
+            if (!isAscii(previousLineStart, previousLineEnd)) {
+                subtitleFlags |= UNDECIDED_NUMBER;
+            } else if (!SubRipParser.isSubtitleNumber(getAsciiString(previousLineStart, previousLineEnd))) {
+                setError(lineStart);
+                return;
+            }
+
+            addSubtitle(
+                    timeRange,
+                    secondPreviousLineStart,
+                    previousLineStart,
+                    lineStart,
+                    getNextLineStart(lineEnd),
+                    subtitleFlags
+            );
+            linesAfterTimeRange = 0;
+        }
+    }
+
+    private void setError(int offset) {
+        incorrect = true;
+        errorOffset = offset;
+    }
+
+    private int getLineEnd(int lineStart) {
+        int result = lineStart;
+        while (result < end && rawData.get(result) != '\n' && rawData.get(result) != '\r') {
+            result++;
+        }
+
+        return result;
+    }
+
+    private int getNextLineStart(int lineEnd) {
+        int result = lineEnd;
+        if (result < end && rawData.get(result) == '\r') {
+            result++;
+        }
+        if (result < end && rawData.get(result) == '\n') {
+            result++;
+        }
+
+        return result;
+    }
+
+    /**
+     * The same as SubRipParser::scanTimeRange but for the line of bytes (lines with non-ASCII bytes never contain time
+     * ranges).
+     */
+    private long scanTimeRange(int lineStart, int lineEnd) {
+        int trimmedStart = lineStart;
+        int trimmedEnd = lineEnd;
+        while (trimmedStart < trimmedEnd && getUnsigned(rawData, trimmedStart) <= ' ') {
+            trimmedStart++;
+        }
+        while (trimmedEnd > trimmedStart && getUnsigned(rawData, trimmedEnd - 1) <= ' ') {
+            trimmedEnd--;
+        }
+
+        /* A quick check so that strings are created only for the lines that are likely to contain time ranges. */
+        if (trimmedEnd - trimmedStart != SubRipParser.TIME_RANGE_LENGTH) {
+            return SubRipParser.NOT_TIME_RANGE;
+        }
+
+        return SubRipParser.scanTimeRange(getAsciiString(trimmedStart, trimmedEnd));
+    }
+
+    private boolean isAscii(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (rawData.get(i) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String getAsciiString(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = rawData.get(i);
+        }
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private void addSubtitle(
+            long timeRange,
+            int blankLineStart,
+            int numberLineStart,
+            int timeLineStart,
+            int textStart,
+            byte subtitleFlags
+    ) {
+        if (subtitleCount == timeRanges.length) {
+            int capacity = 2 * subtitleCount;
+            timeRanges = Arrays.copyOf(timeRanges, capacity);
+            blankLineStarts = Arrays.copyOf(blankLineStarts, capacity);
+            numberLineStarts = Arrays.copyOf(numberLineStarts, capacity);
+            timeLineStarts = Arrays.copyOf(timeLineStarts, capacity);
+            textStarts = Arrays.copyOf(textStarts, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+
+        timeRanges[subtitleCount] = timeRange;
+        blankLineStarts[subtitleCount] = blankLineStart;
+        numberLineStarts[subtitleCount] = numberLineStart;
+        timeLineStarts[subtitleCount] = timeLineStart;
+        textStarts[subtitleCount] = textStart;
+        flags[subtitleCount] = subtitleFlags;
+        subtitleCount++;
+    }
+
+    /**
+     * Returns whether the index can be used to get the subtitles in the given encoding. If it can't the raw data has to
+     * be parsed completely.
+     */
+    public boolean isSuitableFor(Charset encoding) {
+        if (utf8Bom && !encoding.equals(StandardCharsets.UTF_8)) {
+            return false;
+        }
+
+        return ASCII_COMPATIBILITY.computeIfAbsent(encoding, SubRipIndex::isAsciiCompatible);
+    }
+
+    /**
+     * UTF-8 is ASCII-compatible by design, for other encodings only single-byte ones are checked byte by byte, other
+     * multibyte encodings are considered incompatible because their trailing bytes can be in the ASCII range.
+     */
+    private static boolean isAsciiCompatible(Charset encoding) {
+        if (encoding.equals(StandardCharsets.UTF_8)) {
+            return true;
+        }
+
+        if (!encoding.canEncode() || encoding.newEncoder().maxBytesPerChar() != 1) {
+            return false;
+        }
+
+        CharsetDecoder decoder = encoding.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        if (decoder.maxCharsPerByte() != 1) {
+            return false;
+        }
+
+        for (int i = 0; i < 256; i++) {
+            CharBuffer decoded;
+            try {
+                decoded = decoder.decode(ByteBuffer.wrap(new byte[]{(byte) i}));
+            } catch (CharacterCodingException e) {
+                return false;
+            }
+
+            if (decoded.length() != 1) {
+                return false;
+            }
+
+            char character = decoded.charAt(0);
+            if (i < 0x80 && character != i) {
+                return false;
+            }
+            if (i >= 0x80 && (character < 0x80 || character == '\uFEFF')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the end of the line that precedes the line starting at the given index.
+     */
+    int getPreviousLineEnd(int lineStart) {
+        int result = lineStart;
+        if (result > start && rawData.get(result - 1) == '\n') {
+            result--;
+        }
+        if (result > start && rawData.get(result - 1) == '\r') {
+            result--;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the end of the text of the subtitle with the given index.
+     */
+    int getTextEnd(int subtitleIndex) {
+        if (subtitleIndex == subtitleCount - 1) {
+            return end;
+        }
+
+        return blankLineStarts[subtitleIndex + 1];
+    }
+}
@@ -1,118 +1,849 @@
 package kirill.subtitlemerger.logic.subtitles;
 
-import kirill.subtitlemerger.logic.subtitles.entities.Subtitle;
+import kirill.subtitlemerger.logic.subtitles.entities.ColumnarSubtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.LineInterner;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormatException;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
-import org.apache.commons.lang3.Range;
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesValidationResult;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.io.input.CharSequenceReader;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.jetbrains.annotations.Nullable;
 import org.joda.time.LocalTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+@CommonsLog
 public class SubRipParser {
-    private static final Pattern TIME_RANGE_PATTERN = Pattern.compile(
-            "^(\\d{2}:\\d{2}:\\d{2},\\d{3}) --> (\\d{2}:\\d{2}:\\d{2},\\d{3})$"
-    );
+    /**
+     * Is returned by the scanTimeRange method if the line doesn't have the HH:MM:SS,mmm --> HH:MM:SS,mmm layout.
+     */
+    static final long NOT_TIME_RANGE = -1;
 
-    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss,SSS");
+    /**
+     * Is returned by the scanTimeRange method if the line has the right layout but the values are out of range (for
+     * example there are more than 23 hours).
+     */
+    static final long INCORRECT_TIME_RANGE = -2;
 
-    /*
-     * The main idea of this method is to find lines with time ranges, they are the most stable and reliable parts of
-     * the text.
+    /* The length of the HH:MM:SS,mmm part. */
+    private static final int TIME_LENGTH = 12;
+
+    private static final String TIME_RANGE_SEPARATOR = " --> ";
+
+    static final int TIME_RANGE_LENGTH = 2 * TIME_LENGTH + TIME_RANGE_SEPARATOR.length();
+
+    /**
+     * Texts shorter than this (in characters) are always parsed sequentially because for them splitting the text and
+     * coordinating the threads takes more time than it saves.
      */
+    private static final int PARALLEL_PARSING_THRESHOLD = 1024 * 1024;
+
+    private static final int MIN_CHUNK_LENGTH = 256 * 1024;
+
     public static Subtitles from(String text) throws SubtitleFormatException {
-        List<Subtitle> result = new ArrayList<>();
+        if (text.length() >= PARALLEL_PARSING_THRESHOLD) {
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            return fromInParallel(text, Integer.max(MIN_CHUNK_LENGTH, text.length() / (4 * parallelism)));
+        }
 
-        /* Remove BOM if it's present. */
-        if (text.startsWith("\uFEFF")) {
-            text = text.substring(1);
+        try {
+            return parse(new StringReader(text), true);
+        } catch (IOException e) {
+            log.error("reading from a string can't lead to an IOException, most likely a bug");
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Large arrays are parsed in parallel in chunks, small ones are parsed sequentially, either way the raw data is
+     * parsed while being decoded.
+     */
+    public static Subtitles from(byte[] rawData, Charset encoding) throws SubtitleFormatException {
+        return from(ByteBuffer.wrap(rawData), encoding);
+    }
+
+    /**
+     * The same as from(byte[], Charset) but for buffers, for example for the memory-mapped files. The buffer's position
+     * is not changed. The whole text is never decoded at once, for the large buffers the chunks are found with the
+     * index (so only for the ASCII-compatible encodings, others are always parsed sequentially).
+     */
+    public static Subtitles from(ByteBuffer rawData, Charset encoding) throws SubtitleFormatException {
+        if (rawData.remaining() >= PARALLEL_PARSING_THRESHOLD) {
+            SubRipIndex index = SubRipIndex.from(rawData);
+            if (index.isSuitableFor(encoding)) {
+                int parallelism = ForkJoinPool.commonPool().getParallelism();
+                int minChunkLength = Integer.max(MIN_CHUNK_LENGTH, rawData.remaining() / (4 * parallelism));
+                return fromInParallel(index, encoding, minChunkLength);
+            }
         }
 
-        text = text.trim();
-        if (StringUtils.isBlank(text)) {
-            return new Subtitles(result);
+        try {
+            return from(new ByteBufferChannel(rawData.duplicate()), encoding);
+        } catch (IOException e) {
+            log.error("reading from a buffer can't lead to an IOException, most likely a bug");
+            throw new IllegalStateException();
         }
+    }
 
-        List<String> lines = text.lines().collect(toList());
-        /* We need at least two lines - one should contain a number and the other a time range. */
-        if (lines.size() < 2) {
-            throw new SubtitleFormatException();
+    /**
+     * Unlike other methods that replace malformed bytes, this one uses the given decoder as it is, so if the decoder
+     * reports errors the parsing stops at the first malformed byte sequence.
+     */
+    public static Subtitles from(
+            ByteBuffer rawData,
+            CharsetDecoder decoder
+    ) throws CharacterCodingException, SubtitleFormatException {
+        try {
+            Reader reader = Channels.newReader(new ByteBufferChannel(rawData.duplicate()), decoder, -1);
+            return parse(reader, true);
+        } catch (CharacterCodingException e) {
+            throw e;
+        } catch (IOException e) {
+            log.error("reading from a buffer can't lead to other IOExceptions, most likely a bug");
+            throw new IllegalStateException();
         }
+    }
 
-        assertSubtitleNumber(lines.get(0));
-        Range<LocalTime> timeRange = getTimeRange(lines.get(1));
-        List<String> subtitleLines = new ArrayList<>();
-        for (int i = 2; i < lines.size(); i++) {
-            if (isLineWithTimeRange(lines.get(i))) {
-                assertBlank(lines.get(i - 2));
-                assertSubtitleNumber(lines.get(i - 1));
+    /**
+     * Gets the subtitles using the structure found before so that only the texts of the subtitles are decoded (and the
+     * lines with non-ASCII characters where numbers and blank lines should be). If the index can't be used for the
+     * encoding the raw data is parsed completely. Either way the result is the same as for from(byte[], Charset).
+     */
+    public static Subtitles from(SubRipIndex index, Charset encoding) throws SubtitleFormatException {
+        return from(index, encoding, null);
+    }
+
+    /**
+     * The same as from(SubRipIndex, Charset) but the lines are interned with the given interner (if it's not null) so
+     * that the lines repeating across the subtitles are stored only once. The lines are not interned if the index
+     * can't be used for the encoding, that's only possible for the encodings that are almost never used.
+     */
+    public static Subtitles from(
+            SubRipIndex index,
+            Charset encoding,
+            @Nullable LineInterner lineInterner
+    ) throws SubtitleFormatException {
+        if (!index.isSuitableFor(encoding)) {
+            return from(index.getRawData(), encoding);
+        }
+
+        CharsetDecoder decoder = getReplacingDecoder(encoding);
+
+        ColumnarSubtitles.Builder result = new ColumnarSubtitles.Builder(lineInterner);
+        if (isBlankText(index, decoder)) {
+            return result.build();
+        }
 
-                /* The last two lines are a blank line and a line with a number. */
-                subtitleLines = subtitleLines.subList(0, subtitleLines.size() - 2);
-                result.add(new Subtitle(timeRange.getMinimum(), timeRange.getMaximum(), subtitleLines));
+        if (index.isIncorrect() || getUndecidedErrorOffset(index, decoder) != -1) {
+            throw new SubtitleFormatException();
+        }
 
-                timeRange = getTimeRange(lines.get(i));
-                subtitleLines = new ArrayList<>();
+        /* The texts in UTF-8 go to the text pool as they are, without decoding and encoding back. */
+        boolean utf8 = encoding.equals(StandardCharsets.UTF_8);
+        for (int i = 0; i < index.getSubtitleCount(); i++) {
+            startSubtitle(result, index.getTimeRanges()[i]);
+            if (utf8) {
+                addUtf8Lines(result, index.getRawData(), index.getTextStarts()[i], index.getTextEnd(i));
             } else {
-                subtitleLines.add(lines.get(i));
+                addLines(result, decode(index.getRawData(), index.getTextStarts()[i], index.getTextEnd(i), decoder));
             }
         }
 
-        result.add(new Subtitle(timeRange.getMinimum(), timeRange.getMaximum(), subtitleLines));
+        return result.build();
+    }
 
-        return new Subtitles(result);
+    /**
+     * Checks the format of the subtitles the same way the parsing does it but doesn't create any subtitles, only the
+     * lines with non-ASCII characters where numbers and blank lines should be are decoded (or the whole text if the
+     * encoding is not ASCII-compatible).
+     */
+    public static SubtitlesValidationResult validate(byte[] rawData, Charset encoding) {
+        return validate(SubRipIndex.from(ByteBuffer.wrap(rawData)), encoding);
     }
 
-    private static void assertSubtitleNumber(String line) throws SubtitleFormatException {
-        try {
-            if (Integer.parseInt(line.trim()) < 0) {
-                throw new SubtitleFormatException();
+    public static SubtitlesValidationResult validate(SubRipIndex index, Charset encoding) {
+        if (!index.isSuitableFor(encoding)) {
+            /* The index for the text converted to UTF-8 gives the same structure and the same character offsets. */
+            String text = encoding.decode(index.getRawData().duplicate()).toString();
+            SubRipIndex utf8Index = SubRipIndex.from(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            return validate(utf8Index, StandardCharsets.UTF_8);
+        }
+
+        CharsetDecoder decoder = getReplacingDecoder(encoding);
+        if (isBlankText(index, decoder)) {
+            return new SubtitlesValidationResult(true, 0, null, null, null);
+        }
+
+        int errorOffset = getUndecidedErrorOffset(index, decoder);
+        if (errorOffset == -1 && index.isIncorrect()) {
+            errorOffset = index.getErrorOffset();
+        }
+        if (errorOffset != -1) {
+            int errorCharOffset = decode(index.getRawData(), 0, errorOffset, decoder).length();
+            return new SubtitlesValidationResult(false, 0, null, null, errorCharOffset);
+        }
+
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        for (int i = 0; i < index.getSubtitleCount(); i++) {
+            from = Long.min(from, index.getTimeRanges()[i] >>> 32);
+            to = Long.max(to, index.getTimeRanges()[i] & 0xFFFFFFFFL);
+        }
+
+        return new SubtitlesValidationResult(
+                true,
+                index.getSubtitleCount(),
+                index.getSubtitleCount() != 0 ? LocalTime.fromMillisOfDay(from) : null,
+                index.getSubtitleCount() != 0 ? LocalTime.fromMillisOfDay(to) : null,
+                null
+        );
+    }
+
+    private static CharsetDecoder getReplacingDecoder(Charset encoding) {
+        return encoding.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Returns true if the text is blank, it has to be checked only if the first line has non-ASCII characters because
+     * otherwise there is a non-whitespace character at the start.
+     */
+    private static boolean isBlankText(SubRipIndex index, CharsetDecoder decoder) {
+        if (index.getStart() == index.getEnd()) {
+            return true;
+        }
+
+        if (!index.isUndecidedFirstLine()) {
+            return false;
+        }
+
+        ByteBuffer rawData = index.getRawData();
+        if (!StringUtils.isBlank(decode(rawData, index.getStart(), index.getFirstLineEnd(), decoder))) {
+            return false;
+        }
+
+        return StringUtils.isBlank(decode(rawData, index.getStart(), index.getEnd(), decoder));
+    }
+
+    /**
+     * Decodes and checks the lines the index couldn't check by itself. Returns the offset of the line where the
+     * sequential parsing would find the first error or -1 if these lines are correct.
+     */
+    private static int getUndecidedErrorOffset(SubRipIndex index, CharsetDecoder decoder) {
+        ByteBuffer rawData = index.getRawData();
+
+        /* If the text has only one line the error is at its end, before the first line is checked. */
+        if (index.isUndecidedFirstLine() && index.getFirstLineEnd() != index.getEnd()) {
+            String firstLine = decode(rawData, index.getStart(), index.getFirstLineEnd(), decoder).toString();
+            if (!isSubtitleNumber(firstLine)) {
+                return index.getStart();
             }
-        } catch (NumberFormatException e) {
-            throw new SubtitleFormatException();
         }
+
+        for (int i = 0; i < index.getSubtitleCount(); i++) {
+            byte flags = index.getFlags()[i];
+
+            if ((flags & SubRipIndex.UNDECIDED_BLANK) != 0) {
+                int blankLineStart = index.getBlankLineStarts()[i];
+                int blankLineEnd = index.getPreviousLineEnd(index.getNumberLineStarts()[i]);
+                if (!StringUtils.isBlank(decode(rawData, blankLineStart, blankLineEnd, decoder))) {
+                    return index.getTimeLineStarts()[i];
+                }
+            }
+
+            if ((flags & SubRipIndex.UNDECIDED_NUMBER) != 0) {
+                int numberLineStart = index.getNumberLineStarts()[i];
+                int numberLineEnd = index.getPreviousLineEnd(index.getTimeLineStarts()[i]);
+                if (!isSubtitleNumber(decode(rawData, numberLineStart, numberLineEnd, decoder).toString())) {
+                    return index.getTimeLineStarts()[i];
+                }
+            }
+        }
+
+        return -1;
     }
 
-    private static Range<LocalTime> getTimeRange(String line) throws SubtitleFormatException {
-        Matcher matcher = TIME_RANGE_PATTERN.matcher(line.trim());
-        if (!matcher.matches()) {
-            throw new SubtitleFormatException();
+    /**
+     * Parses the subtitles while reading the stream so that the whole text is never kept in memory, only the lines of
+     * the subtitle that is being parsed at the moment. Malformed bytes are replaced the same way the String
+     * constructor does it.
+     */
+    public static Subtitles from(
+            InputStream inputStream,
+            Charset encoding
+    ) throws IOException, SubtitleFormatException {
+        return parse(new InputStreamReader(inputStream, encoding), true);
+    }
+
+    /**
+     * The same as from(InputStream, Charset) but for channels.
+     */
+    public static Subtitles from(
+            ReadableByteChannel channel,
+            Charset encoding
+    ) throws IOException, SubtitleFormatException {
+        return parse(Channels.newReader(channel, getReplacingDecoder(encoding), -1), true);
+    }
+
+    /**
+     * Splits the text into chunks at the beginnings of subtitles and parses the chunks on the ForkJoin pool. A chunk
+     * starts only where the sequential parsing would start a new subtitle anyway (a blank line, then a line with a
+     * number and then a line with a time range) so the result and the format errors are exactly the same as if the
+     * text was parsed sequentially.
+     */
+    static Subtitles fromInParallel(String text, int minChunkLength) throws SubtitleFormatException {
+        List<Integer> chunkStarts = new ArrayList<>();
+        List<Integer> chunkEnds = new ArrayList<>();
+
+        /*
+         * The first chunk has to contain the first line that isn't removed by trimming, otherwise the first chunk may
+         * consist of whitespace only and will be parsed as empty subtitles while the whole text has an incorrect
+         * format.
+         */
+        int contentStart = text.startsWith("\uFEFF") ? 1 : 0;
+        while (contentStart < text.length() && text.charAt(contentStart) <= ' ') {
+            contentStart++;
         }
+        int firstContentLineEnd = getLineEnd(text, contentStart);
 
-        LocalTime from;
-        try {
-            from = TIME_FORMATTER.parseLocalTime(matcher.group(1));
-        } catch (IllegalArgumentException e) {
+        int chunkStart = 0;
+        while (true) {
+            int fromIndex = Integer.max(chunkStart + minChunkLength, firstContentLineEnd);
+            int blankLineStart = getNextChunkBorder(text, fromIndex);
+            if (blankLineStart == -1) {
+                chunkStarts.add(chunkStart);
+                chunkEnds.add(text.length());
+                break;
+            }
+
+            chunkStarts.add(chunkStart);
+            chunkEnds.add(blankLineStart);
+            chunkStart = getNextLineStart(text, blankLineStart);
+        }
+
+        if (chunkStarts.size() == 1) {
+            try {
+                return parse(new StringReader(text), true);
+            } catch (IOException e) {
+                log.error("reading from a string can't lead to an IOException, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+
+        List<Callable<ColumnarSubtitles>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunkStarts.size(); i++) {
+            CharBuffer chunk = CharBuffer.wrap(text, chunkStarts.get(i), chunkEnds.get(i));
+            boolean lastChunk = i == chunkStarts.size() - 1;
+            /* Null means that the chunk has an incorrect format. */
+            tasks.add(() -> {
+                try {
+                    return parse(new CharSequenceReader(chunk), lastChunk);
+                } catch (SubtitleFormatException e) {
+                    return null;
+                }
+            });
+        }
+
+        return parseChunks(tasks);
+    }
+
+    /**
+     * The same as fromInParallel(String, int) but the raw data is split into chunks with the index (which has to be
+     * suitable for the encoding) and every chunk is parsed while being decoded. The index contains only the subtitles
+     * the sequential parsing would start anyway, so a chunk can start at the beginning of such a subtitle if the blank
+     * line before it and the line with its number are ASCII.
+     */
+    static Subtitles fromInParallel(
+            SubRipIndex index,
+            Charset encoding,
+            int minChunkLength
+    ) throws SubtitleFormatException {
+        ByteBuffer rawData = index.getRawData();
+
+        List<Integer> chunkStarts = new ArrayList<>();
+        List<Integer> chunkEnds = new ArrayList<>();
+        int chunkStart = 0;
+        for (int i = 1; i < index.getSubtitleCount(); i++) {
+            int blankLineStart = index.getBlankLineStarts()[i];
+            if (index.getFlags()[i] == 0 && blankLineStart >= chunkStart + minChunkLength) {
+                chunkStarts.add(chunkStart);
+                chunkEnds.add(blankLineStart);
+                chunkStart = index.getNumberLineStarts()[i];
+            }
+        }
+        chunkStarts.add(chunkStart);
+        chunkEnds.add(rawData.limit());
+
+        if (chunkStarts.size() == 1) {
+            try {
+                return from(new ByteBufferChannel(rawData.duplicate()), encoding);
+            } catch (IOException e) {
+                log.error("reading from a buffer can't lead to an IOException, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+
+        List<Callable<ColumnarSubtitles>> tasks = new ArrayList<>();
+        for (int i = 0; i < chunkStarts.size(); i++) {
+            ByteBuffer chunk = rawData.duplicate();
+            chunk.limit(chunkEnds.get(i)).position(chunkStarts.get(i));
+            boolean lastChunk = i == chunkStarts.size() - 1;
+            /* Null means that the chunk has an incorrect format. */
+            tasks.add(() -> {
+                try {
+                    ReadableByteChannel channel = new ByteBufferChannel(chunk);
+                    return parse(Channels.newReader(channel, getReplacingDecoder(encoding), -1), lastChunk);
+                } catch (SubtitleFormatException e) {
+                    return null;
+                }
+            });
+        }
+
+        return parseChunks(tasks);
+    }
+
+    /**
+     * Runs the tasks parsing the chunks on the ForkJoin pool and concatenates the results, a task returns null if its
+     * chunk has an incorrect format.
+     */
+    private static Subtitles parseChunks(List<Callable<ColumnarSubtitles>> tasks) throws SubtitleFormatException {
+        List<ColumnarSubtitles> result = new ArrayList<>();
+        for (Future<ColumnarSubtitles> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                ColumnarSubtitles chunkSubtitles = future.get();
+                if (chunkSubtitles == null) {
+                    throw new SubtitleFormatException();
+                }
+
+                result.add(chunkSubtitles);
+            } catch (ExecutionException e) {
+                log.error("failed to parse a chunk: " + ExceptionUtils.getStackTrace(e) + ", most likely a bug");
+                throw new IllegalStateException();
+            } catch (InterruptedException e) {
+                log.error("all the tasks have to be finished at this point, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+
+        return ColumnarSubtitles.concat(result);
+    }
+
+    /**
+     * Returns the index of the first blank line that starts not earlier than the given index and is followed by a line
+     * with a number and a line with a correct time range or -1 if there is no such line.
+     */
+    private static int getNextChunkBorder(String text, int fromIndex) {
+        int lineStart = fromIndex;
+        while (lineStart < text.length() && !isLineStart(text, lineStart)) {
+            lineStart++;
+        }
+
+        while (lineStart < text.length()) {
+            int lineEnd = getLineEnd(text, lineStart);
+            int numberLineStart = getNextLineStart(text, lineStart);
+            if (numberLineStart == text.length()) {
+                return -1;
+            }
+
+            int numberLineEnd = getLineEnd(text, numberLineStart);
+            int timeLineStart = getNextLineStart(text, numberLineStart);
+            int timeLineEnd = getLineEnd(text, timeLineStart);
+
+            boolean border = StringUtils.isBlank(text.substring(lineStart, lineEnd))
+                    && isSubtitleNumber(text.substring(numberLineStart, numberLineEnd))
+                    && scanTimeRange(CharBuffer.wrap(text, timeLineStart, timeLineEnd)) >= 0;
+            if (border) {
+                return lineStart;
+            }
+
+            lineStart = numberLineStart;
+        }
+
+        return -1;
+    }
+
+    private static boolean isLineStart(String text, int index) {
+        if (index == 0) {
+            return true;
+        }
+
+        char previous = text.charAt(index - 1);
+        return previous == '\n' || (previous == '\r' && text.charAt(index) != '\n');
+    }
+
+    private static int getLineEnd(String text, int lineStart) {
+        int result = lineStart;
+        while (result < text.length() && text.charAt(result) != '\n' && text.charAt(result) != '\r') {
+            result++;
+        }
+
+        return result;
+    }
+
+    private static int getNextLineStart(String text, int lineStart) {
+        int result = getLineEnd(text, lineStart);
+        if (result < text.length() && text.charAt(result) == '\r') {
+            result++;
+        }
+        if (result < text.length() && text.charAt(result) == '\n') {
+            result++;
+        }
+
+        return result;
+    }
+
+    /*
+     * The main idea of this method is to find lines with time ranges, they are the most stable and reliable parts of
+     * the text. Lines are read one by one and the only lines that are kept are the ones of the current subtitle because
+     * we can't tell where the subtitle ends until we see the time range of the next one.
+     * The trimEnd flag is needed for parsing the text in chunks - the end of a chunk is not the end of the text, so
+     * the whitespace at the end of a chunk belongs to the last subtitle and should not be removed.
+     */
+    private static ColumnarSubtitles parse(Reader reader, boolean trimEnd) throws IOException, SubtitleFormatException {
+        ColumnarSubtitles.Builder result = new ColumnarSubtitles.Builder();
+
+        BufferedReader bufferedReader = new BufferedReader(reader);
+
+        String firstLine = getFirstLine(bufferedReader);
+        if (firstLine == null) {
+            /* If it's not the last chunk then there are other subtitles after it so the whole text is not blank. */
+            if (!trimEnd) {
+                throw new SubtitleFormatException();
+            }
+
+            return result.build();
+        }
+
+        /* We need at least two lines - one should contain a number and the other a time range. */
+        String secondLine = bufferedReader.readLine();
+        if (secondLine == null) {
             throw new SubtitleFormatException();
         }
 
-        LocalTime to;
-        try {
-            to = TIME_FORMATTER.parseLocalTime(matcher.group(2));
-        } catch (IllegalArgumentException e) {
+        assertSubtitleNumber(firstLine);
+        long timeRange = scanTimeRange(secondLine);
+        if (timeRange < 0) {
             throw new SubtitleFormatException();
         }
+        List<String> subtitleLines = new ArrayList<>();
+
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            long lineTimeRange = scanTimeRange(line);
+            if (lineTimeRange == INCORRECT_TIME_RANGE) {
+                throw new SubtitleFormatException();
+            }
+
+            if (lineTimeRange != NOT_TIME_RANGE) {
+                /* The last two lines should be a blank line and a line with a number. */
+                if (subtitleLines.size() < 2) {
+                    throw new SubtitleFormatException();
+                }
+                assertBlank(subtitleLines.get(subtitleLines.size() - 2));
+                assertSubtitleNumber(subtitleLines.get(subtitleLines.size() - 1));
+
+                addSubtitle(result, timeRange, subtitleLines.subList(0, subtitleLines.size() - 2));
+
+                timeRange = lineTimeRange;
+                subtitleLines.clear();
+            } else {
+                subtitleLines.add(line);
+            }
+        }
+
+        if (trimEnd) {
+            removeTrailingWhitespace(subtitleLines);
+        }
+        addSubtitle(result, timeRange, subtitleLines);
 
-        return Range.between(from, to, LocalTime::compareTo);
+        return result.build();
     }
 
-    private static boolean isLineWithTimeRange(String line) {
+    /**
+     * Returns the first line of the text the way it would be if the text was trimmed (and the BOM was removed) or null
+     * if the text is blank and thus there are no subtitles at all.
+     */
+    private static String getFirstLine(BufferedReader reader) throws IOException, SubtitleFormatException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+
+        /* Remove BOM if it's present. */
+        if (line.startsWith("\uFEFF")) {
+            line = line.substring(1);
+        }
+
+        while (line != null && isTrimmedCompletely(line)) {
+            line = reader.readLine();
+        }
+        if (line == null) {
+            return null;
+        }
+
+        line = line.substring(getLeadingWhitespaceLength(line));
+
         /*
-         * This simple check is here for the sake of performance, it's pretty precise and at the same time much faster
-         * comparing to regular expressions.
+         * The line can still be blank because trimming removes only control characters and spaces while there are
+         * other whitespace characters (and the control characters at the end will be removed if it's the last line).
+         * In this case the subtitles are considered to be empty only if the rest of the text is blank as well.
          */
-        if (!line.contains("-->")) {
+        if (StringUtils.isBlank(line.substring(0, line.length() - getTrailingWhitespaceLength(line)))) {
+            assertRestOfTextBlank(line, reader);
+            return null;
+        }
+
+        return line;
+    }
+
+    /**
+     * Checks that the text starting from the given line is blank after being trimmed (the text is blank if it has only
+     * whitespace characters but trimming also removes control characters at the end of the text).
+     */
+    private static void assertRestOfTextBlank(
+            String firstLine,
+            BufferedReader reader
+    ) throws IOException, SubtitleFormatException {
+        /* Whether the characters that will be removed only if they are at the very end of the text are not blank. */
+        boolean notBlankIfNotTrimmed = false;
+
+        String line = firstLine;
+        while (line != null) {
+            int trimmedLength = line.length() - getTrailingWhitespaceLength(line);
+            if (trimmedLength == 0) {
+                notBlankIfNotTrimmed = notBlankIfNotTrimmed || !StringUtils.isBlank(line);
+            } else {
+                if (notBlankIfNotTrimmed || !StringUtils.isBlank(line.substring(0, trimmedLength))) {
+                    throw new SubtitleFormatException();
+                }
+
+                notBlankIfNotTrimmed = !StringUtils.isBlank(line.substring(trimmedLength));
+            }
+
+            line = reader.readLine();
+        }
+    }
+
+    /**
+     * Removes the whitespace from the end of the text the same way String::trim does it.
+     */
+    private static void removeTrailingWhitespace(List<String> lines) {
+        while (!lines.isEmpty() && isTrimmedCompletely(lines.get(lines.size() - 1))) {
+            lines.remove(lines.size() - 1);
+        }
+
+        if (!lines.isEmpty()) {
+            String lastLine = lines.get(lines.size() - 1);
+            int trimmedLength = lastLine.length() - getTrailingWhitespaceLength(lastLine);
+            lines.set(lines.size() - 1, lastLine.substring(0, trimmedLength));
+        }
+    }
+
+    private static boolean isTrimmedCompletely(String line) {
+        return getLeadingWhitespaceLength(line) == line.length();
+    }
+
+    private static int getLeadingWhitespaceLength(String line) {
+        int result = 0;
+        while (result < line.length() && line.charAt(result) <= ' ') {
+            result++;
+        }
+
+        return result;
+    }
+
+    private static int getTrailingWhitespaceLength(String line) {
+        int result = 0;
+        while (result < line.length() && line.charAt(line.length() - result - 1) <= ' ') {
+            result++;
+        }
+
+        return result;
+    }
+
+    private static void assertSubtitleNumber(String line) throws SubtitleFormatException {
+        if (!isSubtitleNumber(line)) {
+            throw new SubtitleFormatException();
+        }
+    }
+
+    static boolean isSubtitleNumber(String line) {
+        try {
+            return Integer.parseInt(line.trim()) >= 0;
+        } catch (NumberFormatException e) {
             return false;
         }
+    }
+
+    /**
+     * Checks whether the line (after being trimmed) has the HH:MM:SS,mmm --> HH:MM:SS,mmm layout and returns both times
+     * in one pass without creating any objects. The result is either one of the NOT_TIME_RANGE and
+     * INCORRECT_TIME_RANGE constants or the milliseconds of the day of the earlier time in the higher 32 bits and the
+     * milliseconds of the day of the later time in the lower 32 bits (the times are swapped if they go in the reverse
+     * order).
+     */
+    static long scanTimeRange(CharSequence line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        if (end - start != TIME_RANGE_LENGTH) {
+            return NOT_TIME_RANGE;
+        }
+
+        int separatorStart = start + TIME_LENGTH;
+        for (int i = 0; i < TIME_RANGE_SEPARATOR.length(); i++) {
+            if (line.charAt(separatorStart + i) != TIME_RANGE_SEPARATOR.charAt(i)) {
+                return NOT_TIME_RANGE;
+            }
+        }
+
+        int secondTimeStart = separatorStart + TIME_RANGE_SEPARATOR.length();
+        if (!isTimeLayout(line, start) || !isTimeLayout(line, secondTimeStart)) {
+            return NOT_TIME_RANGE;
+        }
+
+        int first = getMillisOfDay(line, start);
+        int second = getMillisOfDay(line, secondTimeStart);
+        if (first < 0 || second < 0) {
+            return INCORRECT_TIME_RANGE;
+        }
+
+        return ((long) Math.min(first, second) << 32) | Math.max(first, second);
+    }
+
+    /**
+     * Checks that there is HH:MM:SS,mmm starting from the given index (values are not checked here).
+     */
+    private static boolean isTimeLayout(CharSequence line, int start) {
+        for (int i = 0; i < TIME_LENGTH; i++) {
+            char current = line.charAt(start + i);
+            if (i == 2 || i == 5) {
+                if (current != ':') {
+                    return false;
+                }
+            } else if (i == 8) {
+                if (current != ',') {
+                    return false;
+                }
+            } else if (current < '0' || current > '9') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the milliseconds of the day for HH:MM:SS,mmm starting from the given index or -1 if the values are out of
+     * range. The layout has to be checked before calling this method.
+     */
+    private static int getMillisOfDay(CharSequence line, int start) {
+        int hours = getDigit(line, start) * 10 + getDigit(line, start + 1);
+        int minutes = getDigit(line, start + 3) * 10 + getDigit(line, start + 4);
+        int seconds = getDigit(line, start + 6) * 10 + getDigit(line, start + 7);
+        int millis = getDigit(line, start + 9) * 100 + getDigit(line, start + 10) * 10 + getDigit(line, start + 11);
+        if (hours > 23 || minutes > 59 || seconds > 59) {
+            return -1;
+        }
+
+        return ((hours * 60 + minutes) * 60 + seconds) * 1000 + millis;
+    }
+
+    private static int getDigit(CharSequence line, int index) {
+        return line.charAt(index) - '0';
+    }
 
-        return TIME_RANGE_PATTERN.matcher(line.trim()).matches();
+    private static void startSubtitle(ColumnarSubtitles.Builder builder, long timeRange) {
+        builder.startSubtitle((int) (timeRange >>> 32), (int) timeRange);
+    }
+
+    private static void addSubtitle(ColumnarSubtitles.Builder builder, long timeRange, List<String> lines) {
+        startSubtitle(builder, timeRange);
+        for (String line : lines) {
+            builder.addLine(line, 0, line.length());
+        }
+    }
+
+    private static CharBuffer decode(ByteBuffer rawData, int from, int to, CharsetDecoder decoder) {
+        ByteBuffer bytes = rawData.duplicate();
+        bytes.limit(to).position(from);
+
+        try {
+            return decoder.decode(bytes);
+        } catch (CharacterCodingException e) {
+            log.error("decoding errors are replaced so there can't be an exception, most likely a bug");
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Splits the text into lines the same way String::lines does it and adds them to the current subtitle.
+     */
+    private static void addLines(ColumnarSubtitles.Builder builder, CharSequence text) {
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = lineStart;
+            while (lineEnd < text.length() && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            builder.addLine(text, lineStart, lineEnd);
+
+            lineStart = lineEnd;
+            if (lineStart < text.length() && text.charAt(lineStart) == '\r') {
+                lineStart++;
+            }
+            if (lineStart < text.length() && text.charAt(lineStart) == '\n') {
+                lineStart++;
+            }
+        }
+    }
+
+    /**
+     * The same as addLines but for the UTF-8 bytes, line breaks can't be parts of multibyte sequences in UTF-8 so the
+     * bytes can be split without decoding.
+     */
+    private static void addUtf8Lines(ColumnarSubtitles.Builder builder, ByteBuffer rawData, int from, int to) {
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && rawData.get(lineEnd) != '\n' && rawData.get(lineEnd) != '\r') {
+                lineEnd++;
+            }
+            builder.addUtf8Line(rawData, lineStart, lineEnd);
+
+            lineStart = lineEnd;
+            if (lineStart < to && rawData.get(lineStart) == '\r') {
+                lineStart++;
+            }
+            if (lineStart < to && rawData.get(lineStart) == '\n') {
+                lineStart++;
+            }
+        }
     }
 
     private static void assertBlank(String line) throws SubtitleFormatException {
@@ -120,4 +851,47 @@ public class SubRipParser {
             throw new SubtitleFormatException();
         }
     }
+
+    /**
+     * A channel that reads the bytes of the buffer, it lets decoding the buffer the same way as other channels.
+     */
+    private static class ByteBufferChannel implements ReadableByteChannel {
+        private ByteBuffer buffer;
+
+        private boolean open;
+
+        ByteBufferChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.open = true;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int length = Integer.min(buffer.remaining(), destination.remaining());
+            ByteBuffer slice = buffer.slice();
+            slice.limit(length);
+            destination.put(slice);
+            buffer.position(buffer.position() + length);
+
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
 }
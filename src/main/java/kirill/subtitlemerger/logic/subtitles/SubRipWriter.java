@@ -2,47 +2,287 @@ package kirill.subtitlemerger.logic.subtitles;
 
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitle;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.TextPool;
+import lombok.extern.apachecommons.CommonsLog;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.LocalTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+@CommonsLog
 public class SubRipWriter {
     private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss,SSS");
 
+    /*
+     * The size of the buffer for the encoded text, the subtitles are encoded one by one into the buffer and the buffer
+     * is written out every time it's full, so the memory used for writing doesn't depend on the size of the subtitles.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final int PARALLEL_WRITE_THRESHOLD = 64 * 1024;
+
+    /*
+     * The number of subtitles in a part, the parts are kept in memory until they are written so their size doesn't
+     * depend on the size of the subtitles.
+     */
+    private static final int PART_LENGTH = 16 * 1024;
+
+    /*
+     * A part is kept in memory until all the previous parts are written, bigger buffers are used to have fewer of them.
+     */
+    private static final int PART_BUFFER_SIZE = 64 * 1024;
+
     public static String toText(Subtitles subtitles, boolean plainText) {
         StringBuilder result = new StringBuilder();
 
-        for (int i = 0; i < subtitles.getSubtitles().size(); i++) {
-            Subtitle subtitle = subtitles.getSubtitles().get(i);
+        for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+            appendSubtitle(subtitles, i, plainText, result);
+        }
 
-            result.append(i + 1);
-            result.append(System.lineSeparator());
+        return result.toString();
+    }
 
-            result.append(TIME_FORMATTER.print(subtitle.getFrom()));
-            result.append(" --> ");
-            result.append(TIME_FORMATTER.print(subtitle.getTo()));
-            result.append(System.lineSeparator());
+    /**
+     * Writes the same text as toText() in UTF-8 without creating the whole text first. The stream is not closed.
+     */
+    public static void write(Subtitles subtitles, OutputStream outputStream, boolean plainText) throws IOException {
+        write(subtitles, Channels.newChannel(outputStream), plainText);
+    }
+
+    /**
+     * Writes the same text as toText() in UTF-8 without creating the whole text first. The channel is not closed.
+     * The numbers and the times are written as ASCII digits and the lines are copied from the text pools as they are
+     * (they are already in UTF-8), only the lines that have to be cleaned of tags are turned into strings.
+     */
+    public static void write(
+            Subtitles subtitles,
+            WritableByteChannel channel,
+            boolean plainText
+    ) throws IOException {
+        int subtitleCount = subtitles.getSubtitleCount();
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        if (subtitleCount >= PARALLEL_WRITE_THRESHOLD && parallelism != 1 && channel instanceof GatheringByteChannel) {
+            writeInParallel(subtitles, (GatheringByteChannel) channel, plainText, PART_LENGTH, 2 * parallelism);
+            return;
+        }
+
+        Output output = new Output(channel, BUFFER_SIZE);
+        for (int i = 0; i < subtitleCount; i++) {
+            putSubtitle(subtitles, i, plainText, output);
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes the subtitles splitting them into parts of the given number of subtitles regardless of the total number of
+     * subtitles, is used to test the parallel writing on small subtitles.
+     * The text of a subtitle depends only on the subtitle and its index so the parts are encoded into buffers on the
+     * ForkJoin pool independently. The parts are written in the original order with gathering writes as soon as they
+     * are encoded, and no more than the given number of parts are encoded or waiting to be written at the same time, so
+     * the memory used doesn't depend on the size of the subtitles.
+     */
+    static void writeInParallel(
+            Subtitles subtitles,
+            GatheringByteChannel channel,
+            boolean plainText,
+            int partLength,
+            int maxEncodedPartCount
+    ) throws IOException {
+        int partCount = (int) ((subtitles.getSubtitleCount() + (long) partLength - 1) / partLength);
+
+        Deque<ForkJoinTask<List<ByteBuffer>>> tasks = new ArrayDeque<>();
+        int submittedPartCount = 0;
+        try {
+            for (int part = 0; part < partCount; part++) {
+                while (submittedPartCount < partCount && submittedPartCount < part + maxEncodedPartCount) {
+                    int from = submittedPartCount * partLength;
+                    int to = (int) Long.min((long) from + partLength, subtitles.getSubtitleCount());
+                    tasks.addLast(ForkJoinPool.commonPool().submit(() -> encodePart(subtitles, from, to, plainText)));
+                    submittedPartCount++;
+                }
+
+                writeBuffers(tasks.removeFirst().get(), channel);
+            }
+        } catch (InterruptedException e) {
+            for (ForkJoinTask<List<ByteBuffer>> task : tasks) {
+                task.cancel(false);
+            }
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            log.error("failed to encode a part: " + ExceptionUtils.getStackTrace(e) + ", most likely a bug");
+            throw new IllegalStateException();
+        } catch (IOException e) {
+            for (ForkJoinTask<List<ByteBuffer>> task : tasks) {
+                task.cancel(false);
+            }
+
+            throw e;
+        }
+    }
+
+    /*
+     * The channel may write only some of the buffers at once, the written buffers are skipped.
+     */
+    private static void writeBuffers(List<ByteBuffer> buffers, GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] bufferArray = buffers.toArray(new ByteBuffer[0]);
+        int firstBuffer = 0;
+        while (firstBuffer < bufferArray.length) {
+            channel.write(bufferArray, firstBuffer, bufferArray.length - firstBuffer);
+            while (firstBuffer < bufferArray.length && !bufferArray[firstBuffer].hasRemaining()) {
+                firstBuffer++;
+            }
+        }
+    }
+
+    private static List<ByteBuffer> encodePart(
+            Subtitles subtitles,
+            int from,
+            int to,
+            boolean plainText
+    ) throws IOException {
+        Output output = new Output(null, PART_BUFFER_SIZE);
+        for (int i = from; i < to; i++) {
+            putSubtitle(subtitles, i, plainText, output);
+        }
+        output.flush();
 
-            List<String> processedLines = getProcessedSubtitleLines(subtitle.getLines(), plainText);
-            for (int j = 0; j < processedLines.size(); j++) {
-                result.append(processedLines.get(j));
+        return output.getFilledBuffers();
+    }
+
+    private static void putSubtitle(
+            Subtitles subtitles,
+            int index,
+            boolean plainText,
+            Output output
+    ) throws IOException {
+        if (index != 0) {
+            output.putLineSeparator();
+            output.putLineSeparator();
+        }
 
-                if (j != processedLines.size() - 1 || i != subtitles.getSubtitles().size() - 1) {
-                    result.append(System.lineSeparator());
+        putSubtitle(
+                index + 1,
+                subtitles.getFromMillis(index),
+                subtitles.getToMillis(index),
+                subtitles.getTextPool(index),
+                subtitles.getFirstLine(index),
+                subtitles.getLineCount(index),
+                plainText,
+                output
+        );
+    }
+
+    /**
+     * Writes the subtitle without the separator between the subtitles, the separator has to be written before every
+     * subtitle except the first one so that there is no separator at the end of the text.
+     */
+    private static void putSubtitle(
+            int number,
+            int from,
+            int to,
+            TextPool textPool,
+            int firstLine,
+            int lineCount,
+            boolean plainText,
+            Output output
+    ) throws IOException {
+        output.putNumber(number);
+        output.putLineSeparator();
+        output.putTime(from);
+        output.putAscii(" --> ");
+        output.putTime(to);
+        output.putLineSeparator();
+
+        /*
+         * The same rules as in getProcessedSubtitleLines(), the lines without tag characters stay as they are whether
+         * they are blank or not. If there are no lines left it's the same as if there was one empty line.
+         */
+        boolean lineWritten = false;
+        for (int line = firstLine; line < firstLine + lineCount; line++) {
+            ByteBuffer lineBytes = textPool.getLineBytes(line);
+
+            String processedLine = null;
+            if (plainText && hasTagCharacters(lineBytes)) {
+                processedLine = getPlainText(textPool.getLine(line));
+                if (StringUtils.isBlank(processedLine)) {
+                    continue;
                 }
             }
 
-            if (i != subtitles.getSubtitles().size() - 1) {
+            if (lineWritten) {
+                output.putLineSeparator();
+            }
+            lineWritten = true;
+
+            if (processedLine != null) {
+                output.putString(processedLine);
+            } else {
+                output.putBytes(lineBytes);
+            }
+        }
+    }
+
+    private static boolean hasTagCharacters(ByteBuffer lineBytes) {
+        for (int i = lineBytes.position(); i < lineBytes.limit(); i++) {
+            byte current = lineBytes.get(i);
+            if (current == '<' || current == '{') {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void appendSubtitle(Subtitles subtitles, int index, boolean plainText, StringBuilder result) {
+        result.append(index + 1);
+        result.append(System.lineSeparator());
+
+        result.append(TIME_FORMATTER.print(LocalTime.fromMillisOfDay(subtitles.getFromMillis(index))));
+        result.append(" --> ");
+        result.append(TIME_FORMATTER.print(LocalTime.fromMillisOfDay(subtitles.getToMillis(index))));
+        result.append(System.lineSeparator());
+
+        boolean last = index == subtitles.getSubtitleCount() - 1;
+
+        List<String> processedLines = getProcessedSubtitleLines(subtitles.getLines(index), plainText);
+        for (int j = 0; j < processedLines.size(); j++) {
+            result.append(processedLines.get(j));
+
+            if (j != processedLines.size() - 1 || !last) {
                 result.append(System.lineSeparator());
             }
         }
 
-        return result.toString();
+        if (!last) {
+            result.append(System.lineSeparator());
+        }
     }
 
     /**
@@ -86,28 +326,295 @@ public class SubRipWriter {
     }
 
     /**
-     * This method removes HTML and SubStation Alpha tags using regular expressions. I realize that it's not right to
-     * work with HTML using regular expressions and I could have used jsoup to clear tags out but here are the arguments
-     * not to do it:
+     * This method removes HTML and SubStation Alpha tags the same way as the regular expressions "<.+?>" and then
+     * "\\{.+?}" would do but in one pass over the text and without creating a string if there is nothing to remove. I
+     * realize that it's not right to work with HTML this way and I could have used jsoup to clear tags out but here are
+     * the arguments not to do it:
      * 1) A subtitle text is not an html text, it's a regular text with html tags as far as I know. So for example the
      * string "<test" is correct in terms of subtitles but incorrect in terms of HTML because brackets that are not tags
      * have to be encoded. So if I use jsoup it will simply remove the text "<test" completely instead of leaving it as
      * is.
      * 2) All not removed basic html entities will be html-encoded so I have to decode them back.
      * 3) Even if I use jsoup there are no well-known libraries for removing SubStation Alpha tags.
-     * 4) Regular expressions are faster than jsoup.
+     * 4) A simple scan is much faster than jsoup.
      * 5) If it's possible not to use another library it's better to do so to reduce the jar's size.
-     * So I think in general for our purposes regular expressions will suffice.
+     * The edge cases of the regular expressions are kept: a tag has at least one character between the brackets (so
+     * "<>>" is a tag but "<>" is not), the tag ends at the first closing bracket after that, tags don't span line
+     * terminators, and the SubStation Alpha tags are looked for in the text with the HTML tags already removed (so
+     * "{<b>a}" becomes an empty string).
+     */
+    static String getPlainText(String text) {
+        if (text.indexOf('<') == -1 && text.indexOf('{') == -1) {
+            return text;
+        }
+
+        StringBuilder result = new StringBuilder(text.length());
+
+        /* The position in the result where the current SubStation Alpha tag starts or -1 if there is no such tag. */
+        int braceStart = -1;
+
+        int i = 0;
+        while (i < text.length()) {
+            char current = text.charAt(i);
+
+            if (current == '<') {
+                int end = i + 2;
+                while (end < text.length() && text.charAt(end) != '>' && !isLineTerminator(text.charAt(end))) {
+                    end++;
+                }
+
+                if (end < text.length() && text.charAt(end) == '>' && !isLineTerminator(text.charAt(i + 1))) {
+                    i = end + 1;
+                    continue;
+                }
+
+                /*
+                 * There is no tag, and the brackets before the line terminator or the end of the text can't start a
+                 * tag either because there is no closing bracket for them, so all the characters up to that point
+                 * are just text.
+                 */
+                if (i + 1 < text.length() && isLineTerminator(text.charAt(i + 1))) {
+                    end = i + 1;
+                }
+                for (; i < end && i < text.length(); i++) {
+                    braceStart = appendWithoutBraceTags(text.charAt(i), braceStart, result);
+                }
+                continue;
+            }
+
+            braceStart = appendWithoutBraceTags(current, braceStart, result);
+            i++;
+        }
+
+        if (result.length() == text.length()) {
+            return text;
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Appends the character to the text with the HTML tags removed and removes the SubStation Alpha tag if the
+     * character closes it. Returns the new start of the current SubStation Alpha tag.
      */
-    private static String getPlainText(String text) {
-        String result = text;
-        if (text.contains("<") || text.contains(">")) {
-            result = result.replaceAll("<.+?>", "");
+    private static int appendWithoutBraceTags(char character, int braceStart, StringBuilder result) {
+        if (braceStart != -1 && character == '}' && result.length() - braceStart >= 2) {
+            result.setLength(braceStart);
+            return -1;
         }
-        if (text.contains("{") || text.contains("}")) {
-            result = result.replaceAll("\\{.+?}", "");
+
+        result.append(character);
+
+        if (isLineTerminator(character)) {
+            return -1;
+        } else if (braceStart == -1 && character == '{') {
+            return result.length() - 1;
+        } else {
+            return braceStart;
         }
+    }
 
-        return result;
+    /*
+     * The characters the dot doesn't match in regular expressions.
+     */
+    private static boolean isLineTerminator(char character) {
+        return character == '\n' || character == '\r' || character == '\u0085' || character == '\u2028'
+                || character == '\u2029';
+    }
+
+    /**
+     * Writes the subtitles in the same format as write() while they are passed one by one, for example by
+     * StreamingSubtitleMerger, so neither all the subtitles nor their text have to be kept in memory. The subtitles are
+     * numbered in the order they are passed. The text is written to the channel every time the buffer is full and the
+     * rest is written in close(), the channel itself is not closed.
+     */
+    public static class StreamingWriter implements SubtitleConsumer, Closeable {
+        private Output output;
+
+        private boolean plainText;
+
+        private int subtitleCount;
+
+        public StreamingWriter(OutputStream outputStream, boolean plainText) {
+            this(Channels.newChannel(outputStream), plainText);
+        }
+
+        public StreamingWriter(WritableByteChannel channel, boolean plainText) {
+            output = new Output(channel, BUFFER_SIZE);
+            this.plainText = plainText;
+        }
+
+        @Override
+        public void accept(Subtitle subtitle) throws IOException {
+            if (subtitleCount != 0) {
+                output.putLineSeparator();
+                output.putLineSeparator();
+            }
+            subtitleCount++;
+
+            putSubtitle(
+                    subtitleCount,
+                    subtitle.getFrom().getMillisOfDay(),
+                    subtitle.getTo().getMillisOfDay(),
+                    subtitle.getTextPool(),
+                    subtitle.getFirstLine(),
+                    subtitle.getLineCount(),
+                    plainText,
+                    output
+            );
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.flush();
+        }
+    }
+
+    /**
+     * Collects the bytes in a buffer and writes the buffer to the channel every time it's full. The strings are
+     * encoded right into the buffer as well. If there is no channel the full buffers are kept instead and a new buffer
+     * is started.
+     */
+    private static class Output {
+        private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+        /* The length of "HH:mm:ss,SSS". */
+        private static final int TIME_LENGTH = 12;
+
+        /* The maximum number of digits in an int. */
+        private static final int MAX_NUMBER_LENGTH = 10;
+
+        @Nullable
+        private WritableByteChannel channel;
+
+        private int bufferSize;
+
+        private ByteBuffer buffer;
+
+        private List<ByteBuffer> filledBuffers;
+
+        private CharsetEncoder encoder;
+
+        Output(@Nullable WritableByteChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.bufferSize = bufferSize;
+            buffer = ByteBuffer.allocate(bufferSize);
+            filledBuffers = new ArrayList<>();
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        /**
+         * Writes a non-negative number.
+         */
+        void putNumber(int number) throws IOException {
+            ensureSpace(MAX_NUMBER_LENGTH);
+
+            int digitCount = 1;
+            for (int rest = number / 10; rest != 0; rest /= 10) {
+                digitCount++;
+            }
+
+            int position = buffer.position();
+            for (int i = digitCount - 1; i >= 0; i--) {
+                buffer.put(position + i, (byte) ('0' + number % 10));
+                number /= 10;
+            }
+            buffer.position(position + digitCount);
+        }
+
+        /**
+         * Writes the time in the format HH:mm:ss,SSS the same way Joda-Time does it for LocalTime.fromMillisOfDay().
+         */
+        void putTime(int millis) throws IOException {
+            ensureSpace(TIME_LENGTH);
+
+            int millisOfDay = Math.floorMod(millis, DateTimeConstants.MILLIS_PER_DAY);
+            putTwoDigits(millisOfDay / DateTimeConstants.MILLIS_PER_HOUR);
+            buffer.put((byte) ':');
+            putTwoDigits(millisOfDay / DateTimeConstants.MILLIS_PER_MINUTE % 60);
+            buffer.put((byte) ':');
+            putTwoDigits(millisOfDay / DateTimeConstants.MILLIS_PER_SECOND % 60);
+            buffer.put((byte) ',');
+            int millisOfSecond = millisOfDay % 1000;
+            buffer.put((byte) ('0' + millisOfSecond / 100));
+            putTwoDigits(millisOfSecond % 100);
+        }
+
+        private void putTwoDigits(int number) {
+            buffer.put((byte) ('0' + number / 10));
+            buffer.put((byte) ('0' + number % 10));
+        }
+
+        void putLineSeparator() throws IOException {
+            ensureSpace(LINE_SEPARATOR.length);
+            buffer.put(LINE_SEPARATOR);
+        }
+
+        void putAscii(String text) throws IOException {
+            ensureSpace(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+        }
+
+        void putBytes(ByteBuffer bytes) throws IOException {
+            while (bytes.remaining() > buffer.remaining()) {
+                int limit = bytes.limit();
+                bytes.limit(bytes.position() + buffer.remaining());
+                buffer.put(bytes);
+                bytes.limit(limit);
+
+                writeBuffer();
+            }
+
+            buffer.put(bytes);
+        }
+
+        void putString(String text) throws IOException {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (encoder.encode(chars, buffer, true).isOverflow()) {
+                writeBuffer();
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                writeBuffer();
+            }
+            encoder.reset();
+        }
+
+        void flush() throws IOException {
+            if (buffer.position() != 0) {
+                writeBuffer();
+            }
+        }
+
+        /**
+         * Returns the buffers ready to be read if there is no channel, flush() has to be called first.
+         */
+        List<ByteBuffer> getFilledBuffers() {
+            return filledBuffers;
+        }
+
+        private void ensureSpace(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                writeBuffer();
+            }
+        }
+
+        private void writeBuffer() throws IOException {
+            if (channel == null) {
+                buffer.flip();
+                filledBuffers.add(buffer);
+                buffer = ByteBuffer.allocate(bufferSize);
+                return;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
     }
 }
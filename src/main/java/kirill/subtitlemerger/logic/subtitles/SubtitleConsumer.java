@@ -0,0 +1,13 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitle;
+
+import java.io.IOException;
+
+/**
+ * Receives the subtitles one by one as soon as they are ready, for example to write them right away.
+ */
+@FunctionalInterface
+public interface SubtitleConsumer {
+    void accept(Subtitle subtitle) throws IOException;
+}
@@ -1,294 +1,632 @@
 package kirill.subtitlemerger.logic.subtitles;
 
-import kirill.subtitlemerger.logic.subtitles.entities.Subtitle;
+import kirill.subtitlemerger.logic.subtitles.entities.ColumnarSubtitles;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.TextPool;
 import lombok.AllArgsConstructor;
-import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
-import org.apache.commons.collections4.ListUtils;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.jetbrains.annotations.Nullable;
-import org.joda.time.LocalTime;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toSet;
-
+@CommonsLog
 public class SubtitleMerger {
+    /*
+     * The numbers of segments between the points of time, a segment is usually shorter than a subtitle.
+     */
+    private static final int PARALLEL_MERGE_THRESHOLD = 64 * 1024;
+
+    private static final int MIN_PARTITION_LENGTH = 16 * 1024;
+
     public static Subtitles mergeSubtitles(
             Subtitles upperSubtitles,
             Subtitles lowerSubtitles
     ) throws InterruptedException {
-        List<MergerSubtitle> result = makeInitialMerge(upperSubtitles, lowerSubtitles);
-        fixJumps(result);
-        orderSubtitleLines(result);
-        result = getCombinedSubtitles(result);
+        return mergeSubtitles(Arrays.asList(upperSubtitles, lowerSubtitles), 0);
+    }
 
-        return convert(result);
+    public static Subtitles mergeSubtitles(
+            Subtitles upperSubtitles,
+            Subtitles lowerSubtitles,
+            int snapToleranceMillis
+    ) throws InterruptedException {
+        return mergeSubtitles(Arrays.asList(upperSubtitles, lowerSubtitles), snapToleranceMillis);
     }
 
     /**
-     * The first and the simplest stage of the merge - we make a list of all seen points of time and for each segment we
-     * see whether there are subtitles from any source and if there are we create a subtitle for this segment.
+     * Merges any number of subtitles in one pass, the lines of the subtitles go from top to bottom in the order of the
+     * list.
      */
-    private static List<MergerSubtitle> makeInitialMerge(
-            Subtitles upperSubtitles,
-            Subtitles lowerSubtitles
+    public static Subtitles mergeSubtitles(List<Subtitles> allSubtitles) throws InterruptedException {
+        return mergeSubtitles(allSubtitles, 0);
+    }
+
+    /**
+     * Merges the subtitles after snapping the points of time that are not more than the given number of milliseconds
+     * apart to one point (see getSnappedSubtitles), zero turns the snapping off.
+     */
+    public static Subtitles mergeSubtitles(
+            List<Subtitles> allSubtitles,
+            int snapToleranceMillis
     ) throws InterruptedException {
-        List<MergerSubtitle> result = new ArrayList<>();
+        if (snapToleranceMillis < 0) {
+            log.error("negative snap tolerance: " + snapToleranceMillis + ", most likely a bug");
+            throw new IllegalStateException();
+        }
+
+        if (snapToleranceMillis != 0) {
+            allSubtitles = getSnappedSubtitles(allSubtitles, snapToleranceMillis);
+        }
+
+        return merge(allSubtitles, null);
+    }
 
-        List<LocalTime> pointsOfTime = getUniqueSortedPointsOfTime(upperSubtitles, lowerSubtitles);
+    /**
+     * Merges the subtitles splitting the time into parts of at least the given number of segments regardless of the
+     * total number of segments, is used to test the parallel merge on small subtitles.
+     */
+    static Subtitles mergeInParallel(
+            List<Subtitles> allSubtitles,
+            int minPartitionLength
+    ) throws InterruptedException {
+        return merge(allSubtitles, minPartitionLength);
+    }
 
-        boolean upperConsequential = consequentialSubtitles(upperSubtitles);
-        boolean lowerConsequential = consequentialSubtitles(lowerSubtitles);
-        int upperIndex = 0;
-        int lowerIndex = 0;
-        for (int i = 0; i < pointsOfTime.size() - 1; i++) {
+    /**
+     * The time is split into segments by all the points of time of all the subtitles and for each segment we find the
+     * subtitles that cover it, that has to be done sequentially. But if there is a segment that isn't covered by any
+     * subtitle, the merged subtitles before this segment can't affect the merged subtitles after it because neither
+     * the jumps nor the combining can go across a gap in time. So if there are many segments, the time is split at such
+     * gaps into parts that are merged on the ForkJoin pool and the results are concatenated in the original order.
+     */
+    private static Subtitles merge(
+            List<Subtitles> allSubtitles,
+            @Nullable Integer minPartitionLength
+    ) throws InterruptedException {
+        LineIds lineIds = new LineIds(allSubtitles);
+        int[] pointsOfTime = getUniqueSortedPointsOfTime(allSubtitles);
+        int[][] matchingIndices = getMatchingIndices(allSubtitles, pointsOfTime);
+        int segmentCount = Integer.max(pointsOfTime.length - 1, 0);
+
+        if (minPartitionLength == null) {
+            int parallelism = ForkJoinPool.commonPool().getParallelism();
+            if (segmentCount < PARALLEL_MERGE_THRESHOLD || parallelism == 1) {
+                return mergePart(0, segmentCount, pointsOfTime, matchingIndices, lineIds);
+            }
+
+            minPartitionLength = Integer.max(MIN_PARTITION_LENGTH, segmentCount / (4 * parallelism));
+        }
+
+        List<Integer> partitionStarts = new ArrayList<>();
+        partitionStarts.add(0);
+        int segment = minPartitionLength;
+        while (segment < segmentCount) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
 
-            LocalTime from = pointsOfTime.get(i);
-            LocalTime to = pointsOfTime.get(i + 1);
+            if (isGap(segment, matchingIndices)) {
+                partitionStarts.add(segment);
+                segment += minPartitionLength;
+            } else {
+                segment++;
+            }
+        }
+        partitionStarts.add(segmentCount);
+
+        if (partitionStarts.size() == 2) {
+            return mergePart(0, segmentCount, pointsOfTime, matchingIndices, lineIds);
+        }
+
+        List<ForkJoinTask<ColumnarSubtitles>> tasks = new ArrayList<>();
+        for (int i = 0; i < partitionStarts.size() - 1; i++) {
+            int from = partitionStarts.get(i);
+            int to = partitionStarts.get(i + 1);
+            tasks.add(
+                    ForkJoinPool.commonPool().submit(
+                            () -> mergePart(from, to, pointsOfTime, matchingIndices, lineIds)
+                    )
+            );
+        }
 
-            Subtitle upperSubtitle = null;
-            Integer matchingUpperIndex = getIndexMatchingTime(upperIndex, upperSubtitles, from, to, upperConsequential);
-            if (matchingUpperIndex != null) {
-                upperIndex = matchingUpperIndex;
-                upperSubtitle = upperSubtitles.getSubtitles().get(upperIndex);
+        List<ColumnarSubtitles> result = new ArrayList<>();
+        try {
+            for (ForkJoinTask<ColumnarSubtitles> task : tasks) {
+                result.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            /* The parts that are being merged right now will be finished but the rest won't be started. */
+            for (ForkJoinTask<ColumnarSubtitles> task : tasks) {
+                task.cancel(false);
             }
 
-            Subtitle lowerSubtitle = null;
-            Integer matchingLowerIndex = getIndexMatchingTime(lowerIndex, lowerSubtitles, from, to, lowerConsequential);
-            if (matchingLowerIndex != null) {
-                lowerIndex = matchingLowerIndex;
-                lowerSubtitle = lowerSubtitles.getSubtitles().get(lowerIndex);
+            throw e;
+        } catch (ExecutionException e) {
+            log.error("failed to merge a part: " + ExceptionUtils.getStackTrace(e) + ", most likely a bug");
+            throw new IllegalStateException();
+        }
+
+        return ColumnarSubtitles.concat(result);
+    }
+
+    private static boolean isGap(int segment, int[][] matchingIndices) {
+        for (int[] sourceIndices : matchingIndices) {
+            if (sourceIndices[segment] != -1) {
+                return false;
             }
+        }
 
-            if (upperSubtitle != null || lowerSubtitle != null) {
-                List<MergerSubtitleLine> subtitleLines = new ArrayList<>();
+        return true;
+    }
 
-                if (upperSubtitle != null) {
-                    subtitleLines.addAll(
-                            upperSubtitle.getLines().stream()
-                                    .map(line -> new MergerSubtitleLine(line, Source.UPPER_SUBTITLES))
-                                    .collect(toList())
-                    );
-                }
+    /**
+     * Merges the subtitles for the segments from the index from (inclusive) to the index to (exclusive).
+     */
+    private static ColumnarSubtitles mergePart(
+            int from,
+            int to,
+            int[] pointsOfTime,
+            int[][] matchingIndices,
+            LineIds lineIds
+    ) throws InterruptedException {
+        List<MergerSubtitle> result = makeInitialMerge(from, to, pointsOfTime, matchingIndices, lineIds);
+        fixJumps(result, lineIds);
+        orderSubtitleLines(result, lineIds);
+        result = getCombinedSubtitles(result);
+
+        return convert(result, lineIds);
+    }
 
-                if (lowerSubtitle != null) {
-                    subtitleLines.addAll(
-                            lowerSubtitle.getLines().stream()
-                                    .map(line -> new MergerSubtitleLine(line, Source.LOWER_SUBTITLES))
-                                    .collect(toList())
-                    );
+    /**
+     * Returns the indices of the subtitles covering the segments between the consecutive points of time for each
+     * source, the index is -1 if there is no such subtitle.
+     */
+    private static int[][] getMatchingIndices(
+            List<Subtitles> allSubtitles,
+            int[] pointsOfTime
+    ) throws InterruptedException {
+        int segmentCount = Integer.max(pointsOfTime.length - 1, 0);
+        int[][] result = new int[allSubtitles.size()][segmentCount];
+
+        for (int source = 0; source < allSubtitles.size(); source++) {
+            SubtitleFinder finder = new SubtitleFinder(allSubtitles.get(source));
+            for (int i = 0; i < segmentCount; i++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
                 }
 
-                result.add(new MergerSubtitle(from, to, subtitleLines));
+                result[source][i] = finder.getIndexMatchingTime(pointsOfTime[i], pointsOfTime[i + 1]);
             }
         }
 
         return result;
     }
 
-    private static List<LocalTime> getUniqueSortedPointsOfTime(
-            Subtitles upperSubtitles,
-            Subtitles lowerSubtitles
+    /**
+     * The first and the simplest stage of the merge - for each segment we see whether there are subtitles from any
+     * source and if there are we create a subtitle for this segment.
+     */
+    private static List<MergerSubtitle> makeInitialMerge(
+            int from,
+            int to,
+            int[] pointsOfTime,
+            int[][] matchingIndices,
+            LineIds lineIds
     ) throws InterruptedException {
-        Set<LocalTime> result = new TreeSet<>();
+        List<MergerSubtitle> result = new ArrayList<>();
 
-        List<Subtitle> allSubtitles = ListUtils.union(upperSubtitles.getSubtitles(), lowerSubtitles.getSubtitles());
-        for (Subtitle subtitle : allSubtitles) {
+        for (int i = from; i < to; i++) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
 
-            result.add(subtitle.getFrom());
-            result.add(subtitle.getTo());
+            if (isGap(i, matchingIndices)) {
+                continue;
+            }
+
+            int lineCount = 0;
+            for (int source = 0; source < matchingIndices.length; source++) {
+                if (matchingIndices[source][i] != -1) {
+                    lineCount += lineIds.getLineCount(source, matchingIndices[source][i]);
+                }
+            }
+
+            int[] lines = new int[lineCount];
+            int lineIndex = 0;
+            for (int source = 0; source < matchingIndices.length; source++) {
+                if (matchingIndices[source][i] != -1) {
+                    lineIndex = lineIds.copyIds(source, matchingIndices[source][i], lines, lineIndex);
+                }
+            }
+
+            result.add(new MergerSubtitle(pointsOfTime[i], pointsOfTime[i + 1], lines));
         }
 
-        return new ArrayList<>(result);
+        return result;
     }
 
     /**
-     * Returns true if all the subtitles go consequentially meaning time points don't decrease. The result will be used
-     * to increase merging performance later.
+     * The points of time of each source are sorted separately (that is not necessary if the subtitles go
+     * consequentially) and then the sorted sequences are merged with a heap, so the cost is O(n log n) for the sources
+     * with overlaps and O(n log k) otherwise where k is the number of sources.
      */
-    private static boolean consequentialSubtitles(Subtitles subtitles) {
-        for (int i = 0; i < subtitles.getSubtitles().size(); i++) {
-            Subtitle subtitle = subtitles.getSubtitles().get(i);
-            if (subtitle.getTo().isBefore(subtitle.getFrom())) {
-                return false;
+    private static int[] getUniqueSortedPointsOfTime(List<Subtitles> allSubtitles) throws InterruptedException {
+        int totalCount = 0;
+        List<int[]> sortedPoints = new ArrayList<>();
+        for (Subtitles subtitles : allSubtitles) {
+            int[] points = new int[2 * subtitles.getSubtitleCount()];
+            for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                points[2 * i] = subtitles.getFromMillis(i);
+                points[2 * i + 1] = subtitles.getToMillis(i);
             }
 
-            if (i != subtitles.getSubtitles().size() - 1) {
-                Subtitle nextSubtitle = subtitles.getSubtitles().get(i + 1);
-                if (nextSubtitle.getFrom().isBefore(subtitle.getTo())) {
-                    return false;
-                }
+            if (!consequentialSubtitles(subtitles)) {
+                Arrays.sort(points);
             }
+
+            sortedPoints.add(points);
+            totalCount += points.length;
         }
 
-        return true;
+        /*
+         * The heap has the current points of the sources, the point is in the upper 32 bits and the source is in the
+         * lower 32 bits so the entries can be compared as numbers.
+         */
+        int[] positions = new int[sortedPoints.size()];
+        long[] heap = new long[sortedPoints.size()];
+        int heapSize = 0;
+        for (int source = 0; source < sortedPoints.size(); source++) {
+            if (sortedPoints.get(source).length != 0) {
+                heap[heapSize] = getHeapEntry(sortedPoints.get(source)[0], source);
+                heapSize++;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i);
+        }
+
+        int[] result = new int[totalCount];
+        int uniqueCount = 0;
+        while (heapSize != 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            int point = (int) (heap[0] >>> 32);
+            int source = (int) heap[0];
+            if (uniqueCount == 0 || result[uniqueCount - 1] != point) {
+                result[uniqueCount++] = point;
+            }
+
+            int[] points = sortedPoints.get(source);
+            positions[source]++;
+            if (positions[source] < points.length) {
+                heap[0] = getHeapEntry(points[positions[source]], source);
+            } else {
+                heapSize--;
+                heap[0] = heap[heapSize];
+            }
+            siftDown(heap, heapSize, 0);
+        }
+
+        return Arrays.copyOf(result, uniqueCount);
     }
 
-    /*
-     * For correctly formatted subtitles we can check only the current index and the next one (if there is one). But
-     * sometimes there can be subtitles that are overlapped in time and to deal with them we have to check all indices
-     * to the right. It's better to handle these situations differently because if we check only two indices instead of
-     * all indices to the right performance will be increased significantly (dozens of times, for example for 10 mb
-     * files initial merging would take around 100 ms instead of several seconds without this optimization).
+    /**
+     * Subtitles from different sources are often timed a few milliseconds apart, and every such pair of points makes a
+     * tiny segment that goes through all the stages of the merge and usually ends up as a separate subtitle. So the
+     * sorted points of time are split into clusters in one pass - a cluster starts with a point and includes all the
+     * following points that are not more than the tolerance after it, and all the points of the cluster are replaced
+     * with its first point. A subtitle keeps its original times if both of them are in the same cluster because
+     * otherwise it would disappear.
      */
-    @Nullable
-    private static Integer getIndexMatchingTime(
-            int currentIndex,
-            Subtitles subtitles,
-            LocalTime from,
-            LocalTime to,
-            boolean consequentialSubtitles
-    ) {
-        int topIndexToCheck;
-        if (consequentialSubtitles) {
-            topIndexToCheck = Integer.min(currentIndex + 1, subtitles.getSubtitles().size() - 1);
-        } else {
-            topIndexToCheck = subtitles.getSubtitles().size() - 1;
+    private static List<Subtitles> getSnappedSubtitles(
+            List<Subtitles> allSubtitles,
+            int toleranceMillis
+    ) throws InterruptedException {
+        int[] pointsOfTime = getUniqueSortedPointsOfTime(allSubtitles);
+
+        int[] snappedPoints = new int[pointsOfTime.length];
+        int clusterStart = 0;
+        for (int i = 0; i < pointsOfTime.length; i++) {
+            if (pointsOfTime[i] - pointsOfTime[clusterStart] > toleranceMillis) {
+                clusterStart = i;
+            }
+            snappedPoints[i] = pointsOfTime[clusterStart];
         }
 
-        for (int i = currentIndex; i <= topIndexToCheck; i++) {
-            if (subtitleMatchesTime(subtitles.getSubtitles().get(i), from, to)) {
-                return i;
+        List<Subtitles> result = new ArrayList<>();
+        for (Subtitles subtitles : allSubtitles) {
+            int[] froms = new int[subtitles.getSubtitleCount()];
+            int[] tos = new int[subtitles.getSubtitleCount()];
+            for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                int from = subtitles.getFromMillis(i);
+                int to = subtitles.getToMillis(i);
+                int snappedFrom = snappedPoints[Arrays.binarySearch(pointsOfTime, from)];
+                int snappedTo = snappedPoints[Arrays.binarySearch(pointsOfTime, to)];
+                if (snappedFrom == snappedTo && from < to) {
+                    froms[i] = from;
+                    tos[i] = to;
+                } else {
+                    froms[i] = snappedFrom;
+                    tos[i] = snappedTo;
+                }
             }
+
+            result.add(new SnappedSubtitles(subtitles, froms, tos));
         }
 
-        return null;
+        return result;
+    }
+
+    private static long getHeapEntry(int point, int source) {
+        return ((long) point << 32) | source;
     }
 
-    private static boolean subtitleMatchesTime(Subtitle subtitle, LocalTime from, LocalTime to) {
-        boolean fromInside = !from.isBefore(subtitle.getFrom()) && !from.isAfter(subtitle.getTo());
-        boolean toInside = !to.isBefore(subtitle.getFrom()) && !to.isAfter(subtitle.getTo());
+    private static void siftDown(long[] heap, int heapSize, int index) {
+        long entry = heap[index];
+        while (2 * index + 1 < heapSize) {
+            int child = 2 * index + 1;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child++;
+            }
 
-        return fromInside && toInside;
+            if (entry <= heap[child]) {
+                break;
+            }
+
+            heap[index] = heap[child];
+            index = child;
+        }
+
+        heap[index] = entry;
     }
 
     /**
-     * It may occur after the initial merge that several consecutive merged subtitles have the exact same lines from one
-     * of the sources. If there is at least one subtitle among them who has only these lines (and thus just one source)
-     * while there is also at least one subtitle that has these lines plus the lines from the other source, it may look
-     * like a "jump" of the lines from the first source. Imagine that a subtitle with only these lines is displayed and
-     * right after it goes another subtitle that has both these lines at the top and the other lines at the bottom.
-     * Because the lines go alone and later they are displayed on top of the other lines it looks like a jump.
-     * To fix this we should find all such subtitles with only one source and add appropriate lines from the other
-     * source for them.
+     * Returns true if all the subtitles go consequentially meaning time points don't decrease. The result will be used
+     * to increase merging performance later.
      */
-    private static void fixJumps(List<MergerSubtitle> subtitles) throws InterruptedException {
-        for (int i = 0; i < subtitles.size(); i++) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
+    private static boolean consequentialSubtitles(Subtitles subtitles) {
+        for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+            if (subtitles.getToMillis(i) < subtitles.getFromMillis(i)) {
+                return false;
             }
 
-            MergerSubtitle subtitle = subtitles.get(i);
-            Set<Source> sources = subtitle.getLines().stream().map(MergerSubtitleLine::getSource).collect(toSet());
-            if (sources.size() == 1) {
-                Source otherSource = Arrays.stream(Source.values())
-                        .filter(currentSource -> !sources.contains(currentSource))
-                        .findFirst().orElseThrow(IllegalStateException::new);
-
-                List<MergerSubtitleLine> linesToAdd = getLinesFromOtherSourceToAdd(i, otherSource, subtitles);
-                if (linesToAdd != null) {
-                    subtitle.getLines().addAll(linesToAdd);
+            if (i != subtitles.getSubtitleCount() - 1) {
+                if (subtitles.getFromMillis(i + 1) < subtitles.getToMillis(i)) {
+                    return false;
                 }
             }
         }
+
+        return true;
+    }
+
+    private static boolean subtitleMatchesTime(Subtitles subtitles, int index, int from, int to) {
+        int subtitleFrom = subtitles.getFromMillis(index);
+        int subtitleTo = subtitles.getToMillis(index);
+
+        boolean fromInside = from >= subtitleFrom && from <= subtitleTo;
+        boolean toInside = to >= subtitleFrom && to <= subtitleTo;
+
+        return fromInside && toInside;
     }
 
     /**
-     * Checks the subtitles around the subtitle with a given index which have the exact same lines for the source. If at
-     * least one of them has lines from the other source as well then the lines from the other source are returned. The
-     * method returns the closest lines and gives priority to subtitles to the left because it's better to show already
-     * displayed subtitles longer than to show not yet displayed subtitles sooner (because of spoilers).
+     * It may occur after the initial merge that several consecutive merged subtitles have the exact same lines from
+     * some of the sources. If there is at least one subtitle among them who has only these lines while there is also at
+     * least one subtitle that has these lines plus the lines from another source, it may look like a "jump" of the
+     * lines. Imagine that a subtitle with only the lines from the first source is displayed and right after it goes
+     * another subtitle that has these lines at the top and the lines from the second source at the bottom. Because the
+     * lines go alone and later they are displayed on top of the other lines it looks like a jump.
+     * To fix this we should find all such subtitles with missing sources and add appropriate lines from the missing
+     * sources for them. The lines are taken from the closest subtitle among the subtitles around that have the exact
+     * same lines for the sources of the subtitle, the subtitles to the left have priority because it's better to show
+     * already displayed subtitles longer than to show not yet displayed subtitles sooner (because of spoilers).
+     * Searching around every subtitle is quadratic if the same lines are displayed for many subtitles, so instead the
+     * subtitles are split into runs for each source - the subtitles in a run go strictly one after the other and have
+     * the same lines for the source. The subtitles around that have the same lines for all the sources of the subtitle
+     * are then the intersection of the runs the subtitle belongs to, and the closest subtitles with the lines are
+     * tracked for each source, so the whole stage takes linear time.
+     * Note that the subtitles to the left may have been already changed at this point and the result depends on these
+     * changes, so the runs and the subtitles with the lines to the left are tracked while the subtitles are being
+     * fixed, while the subtitles to the right are not changed yet and their runs can be found in advance.
      */
-    @Nullable
-    private static List<MergerSubtitleLine> getLinesFromOtherSourceToAdd(
-            int subtitleIndex,
-            Source otherSource,
-            List<MergerSubtitle> subtitles
-    ) throws InterruptedException {
-        MergerSubtitle subtitle = subtitles.get(subtitleIndex);
-        Source source = subtitle.getLines().get(0).getSource();
+    private static void fixJumps(List<MergerSubtitle> subtitles, LineIds lineIds) throws InterruptedException {
+        int count = subtitles.size();
+        int sourceCount = lineIds.getSourceCount();
+
+        int[][] runEnds = new int[sourceCount][count];
+        int[][] nextIndicesWithLines = new int[sourceCount][count];
+        for (int source = 0; source < sourceCount; source++) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
 
-        for (int i = subtitleIndex - 1; i >= 0; i--) {
-            if (Thread.interrupted()) {
-                throw new InterruptedException();
-            }
+                MergerSubtitle subtitle = subtitles.get(i);
+                if (i != count - 1 && haveSameLines(subtitle, subtitles.get(i + 1), source, lineIds)) {
+                    runEnds[source][i] = runEnds[source][i + 1];
+                } else {
+                    runEnds[source][i] = i;
+                }
 
-            if (areConsecutive(subtitles.get(i), subtitles.get(i + 1), source)) {
-                /* If the lines are different it means that this subtitle has lines from the other source. */
-                if (!Objects.equals(subtitles.get(i).getLines(), subtitles.get(i + 1).getLines())) {
-                    return subtitles.get(i).getLines().stream()
-                            .filter(line -> line.getSource() == otherSource)
-                            .collect(toList());
+                if (hasLines(subtitle, source, lineIds)) {
+                    nextIndicesWithLines[source][i] = i;
+                } else {
+                    nextIndicesWithLines[source][i] = i != count - 1 ? nextIndicesWithLines[source][i + 1] : -1;
                 }
-            } else {
-                break;
             }
         }
 
-        for (int i = subtitleIndex + 1; i < subtitles.size(); i++) {
+        int[] runStarts = new int[sourceCount];
+        int[] previousIndicesWithLines = new int[sourceCount];
+        Arrays.fill(previousIndicesWithLines, -1);
+        boolean[] hasSource = new boolean[sourceCount];
+        for (int i = 0; i < count; i++) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
 
-            if (areConsecutive(subtitles.get(i - 1), subtitles.get(i), source)) {
-                /* If the lines are different it means that this subtitle has lines from the other source. */
-                if (!Objects.equals(subtitles.get(i - 1).getLines(), subtitles.get(i).getLines())) {
-                    return subtitles.get(i).getLines().stream()
-                            .filter(line -> line.getSource() == otherSource)
-                            .collect(toList());
+            MergerSubtitle subtitle = subtitles.get(i);
+
+            int sourcesPresent = 0;
+            for (int source = 0; source < sourceCount; source++) {
+                hasSource[source] = hasLines(subtitle, source, lineIds);
+                if (hasSource[source]) {
+                    sourcesPresent++;
                 }
-            } else {
-                break;
             }
-        }
 
-        return null;
+            if (sourcesPresent != 0 && sourcesPresent != sourceCount) {
+                int runStart = 0;
+                int runEnd = count - 1;
+                for (int source = 0; source < sourceCount; source++) {
+                    if (hasSource[source]) {
+                        boolean continuesRun = i != 0
+                                && haveSameLines(subtitles.get(i - 1), subtitle, source, lineIds);
+                        runStart = Integer.max(runStart, continuesRun ? runStarts[source] : i);
+                        runEnd = Integer.min(runEnd, runEnds[source][i]);
+                    }
+                }
+
+                /*
+                 * The lines are taken only from the other subtitles so they can be added to the subtitle right away.
+                 */
+                for (int otherSource = 0; otherSource < sourceCount; otherSource++) {
+                    if (hasSource[otherSource]) {
+                        continue;
+                    }
+
+                    int previousIndex = previousIndicesWithLines[otherSource];
+                    int nextIndex = i != count - 1 ? nextIndicesWithLines[otherSource][i + 1] : -1;
+                    if (previousIndex != -1 && previousIndex >= runStart) {
+                        addSourceLines(subtitle, subtitles.get(previousIndex), otherSource, lineIds);
+                    } else if (nextIndex != -1 && nextIndex <= runEnd) {
+                        addSourceLines(subtitle, subtitles.get(nextIndex), otherSource, lineIds);
+                    }
+                }
+            }
+
+            for (int source = 0; source < sourceCount; source++) {
+                if (i == 0 || !haveSameLines(subtitles.get(i - 1), subtitle, source, lineIds)) {
+                    runStarts[source] = i;
+                }
+
+                if (hasLines(subtitle, source, lineIds)) {
+                    previousIndicesWithLines[source] = i;
+                }
+            }
+        }
     }
 
     /**
-     * Returns true if the subtitles are consecutive for the source meaning they go strictly one after the other and the
-     * lines for the source are equal.
+     * Returns true if the subtitles go strictly one after the other and the lines for the source are equal.
      */
-    private static boolean areConsecutive(MergerSubtitle previous, MergerSubtitle next, Source source) {
-        if (!Objects.equals(previous.getTo(), next.getFrom())) {
+    private static boolean haveSameLines(MergerSubtitle previous, MergerSubtitle next, int source, LineIds lineIds) {
+        if (previous.getTo() != next.getFrom()) {
             return false;
         }
 
-        return Objects.equals(
-                previous.getLines().stream().filter(line -> line.getSource() == source).collect(toList()),
-                next.getLines().stream().filter(line -> line.getSource() == source).collect(toList())
-        );
+        int[] previousLines = previous.getLines();
+        int[] nextLines = next.getLines();
+
+        int previousIndex = 0;
+        int nextIndex = 0;
+        while (true) {
+            while (previousIndex < previousLines.length && lineIds.getSource(previousLines[previousIndex]) != source) {
+                previousIndex++;
+            }
+            while (nextIndex < nextLines.length && lineIds.getSource(nextLines[nextIndex]) != source) {
+                nextIndex++;
+            }
+
+            if (previousIndex == previousLines.length || nextIndex == nextLines.length) {
+                return previousIndex == previousLines.length && nextIndex == nextLines.length;
+            }
+
+            if (previousLines[previousIndex] != nextLines[nextIndex]) {
+                return false;
+            }
+
+            previousIndex++;
+            nextIndex++;
+        }
+    }
+
+    private static boolean hasLines(MergerSubtitle subtitle, int source, LineIds lineIds) {
+        for (int line : subtitle.getLines()) {
+            if (lineIds.getSource(line) == source) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void addSourceLines(MergerSubtitle subtitle, MergerSubtitle other, int source, LineIds lineIds) {
+        int[] lines = subtitle.getLines();
+
+        int count = 0;
+        for (int line : other.getLines()) {
+            if (lineIds.getSource(line) == source) {
+                count++;
+            }
+        }
+
+        int[] result = Arrays.copyOf(lines, lines.length + count);
+        int index = lines.length;
+        for (int line : other.getLines()) {
+            if (lineIds.getSource(line) == source) {
+                result[index++] = line;
+            }
+        }
+
+        subtitle.setLines(result);
     }
 
     /**
      * After the previous steps subtitle lines may be mixed up a little bit meaning lines from lower subtitles may go
-     * higher than lines from upper subtitles. This method fixes that.
+     * higher than lines from upper subtitles. This method fixes that, the sorting is stable so the order of the lines
+     * from one source is kept. The lines usually go almost in order so the insertion sort is used.
      */
-    private static void orderSubtitleLines(List<MergerSubtitle> subtitles) throws InterruptedException {
+    private static void orderSubtitleLines(
+            List<MergerSubtitle> subtitles,
+            LineIds lineIds
+    ) throws InterruptedException {
         for (MergerSubtitle subtitle : subtitles) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
 
-            List<MergerSubtitleLine> orderedLines = ListUtils.union(
-                    subtitle.getLines().stream()
-                            .filter(line -> line.getSource() == Source.UPPER_SUBTITLES)
-                            .collect(toList()),
-                    subtitle.getLines().stream()
-                            .filter(line -> line.getSource() == Source.LOWER_SUBTITLES)
-                            .collect(toList())
-            );
+            int[] lines = subtitle.getLines();
+            for (int i = 1; i < lines.length; i++) {
+                int line = lines[i];
+                int source = lineIds.getSource(line);
+
+                int j = i - 1;
+                while (j >= 0 && lineIds.getSource(lines[j]) > source) {
+                    lines[j + 1] = lines[j];
+                    j--;
+                }
+                lines[j + 1] = line;
+            }
 
-            subtitle.setLines(orderedLines);
+            subtitle.setLines(lines);
         }
     }
 
@@ -309,8 +647,8 @@ public class SubtitleMerger {
             if (result.size() > 0) {
                 MergerSubtitle lastAddedSubtitle = result.get(result.size() - 1);
 
-                boolean canCombine = Objects.equals(lastAddedSubtitle.getLines(), currentSubtitle.getLines())
-                        && Objects.equals(lastAddedSubtitle.getTo(), currentSubtitle.getFrom());
+                boolean canCombine = lastAddedSubtitle.getTo() == currentSubtitle.getFrom()
+                        && lastAddedSubtitle.haveSameLines(currentSubtitle);
                 if (canCombine) {
                     lastAddedSubtitle.setTo(currentSubtitle.getTo());
                     addCurrentSubtitle = false;
@@ -325,49 +663,343 @@ public class SubtitleMerger {
         return result;
     }
 
-    private static Subtitles convert(List<MergerSubtitle> mergedSubtitles) throws InterruptedException {
-        List<Subtitle> result = new ArrayList<>();
+    /**
+     * The lines of the merged subtitles are copied to one new text pool as UTF-8 bytes so that the result doesn't
+     * depend on the pools of the original subtitles.
+     */
+    private static ColumnarSubtitles convert(
+            List<MergerSubtitle> mergedSubtitles,
+            LineIds lineIds
+    ) throws InterruptedException {
+        ColumnarSubtitles.Builder result = new ColumnarSubtitles.Builder();
 
         for (MergerSubtitle mergedSubtitle : mergedSubtitles) {
             if (Thread.interrupted()) {
                 throw new InterruptedException();
             }
 
-            result.add(
-                    new Subtitle(
-                            mergedSubtitle.getFrom(),
-                            mergedSubtitle.getTo(),
-                            mergedSubtitle.getLines().stream().map(MergerSubtitleLine::getText).collect(toList())
-                    )
-            );
+            result.startSubtitle(mergedSubtitle.getFrom(), mergedSubtitle.getTo());
+            for (int line : mergedSubtitle.getLines()) {
+                result.addLine(lineIds.getTextPool(line), lineIds.getLineIndex(line));
+            }
         }
 
-        return new Subtitles(result);
+        return result.build();
     }
 
+    /**
+     * Finds the subtitles of one source for the segments of time between the consecutive points of time. The segments
+     * have to be passed in the ascending order. The subtitle for a segment is the first subtitle covering the segment
+     * among the subtitles that go not earlier than the subtitle found for the previous segment.
+     * For correctly formatted subtitles we can check only the current index and the next one (if there is one). But
+     * sometimes there can be subtitles that are overlapped in time and then we use a sweep line - the subtitles become
+     * active when the segments reach their beginnings and inactive when the segments reach their ends, and the
+     * subtitle is the first active one not earlier than the previous subtitle. Every subtitle is added to and removed
+     * from the active ones only once and every search takes O(log n), so the merge takes O(n log n) time instead of
+     * O(n^2) (several seconds instead of around 100 ms for 10 mb files).
+     */
+    private static class SubtitleFinder {
+        private Subtitles subtitles;
+
+        private boolean consequential;
+
+        private int currentIndex;
+
+        /*
+         * The starts and the ends of the subtitles sorted by time, the time is in the upper 32 bits and the index of
+         * the subtitle is in the lower 32 bits. Are used only for the subtitles that are not consequential.
+         */
+        private long[] starts;
+
+        private long[] ends;
+
+        private int startPosition;
+
+        private int endPosition;
+
+        private TreeSet<Integer> activeIndices;
+
+        SubtitleFinder(Subtitles subtitles) {
+            this.subtitles = subtitles;
+            consequential = consequentialSubtitles(subtitles);
+
+            if (!consequential) {
+                int count = 0;
+                starts = new long[subtitles.getSubtitleCount()];
+                ends = new long[subtitles.getSubtitleCount()];
+                for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+                    /* Such subtitles can't cover any segment. */
+                    if (subtitles.getFromMillis(i) >= subtitles.getToMillis(i)) {
+                        continue;
+                    }
+
+                    starts[count] = ((long) subtitles.getFromMillis(i) << 32) | i;
+                    ends[count] = ((long) subtitles.getToMillis(i) << 32) | i;
+                    count++;
+                }
+
+                starts = Arrays.copyOf(starts, count);
+                ends = Arrays.copyOf(ends, count);
+                Arrays.sort(starts);
+                Arrays.sort(ends);
+
+                activeIndices = new TreeSet<>();
+            }
+        }
+
+        /**
+         * Returns the index of the matching subtitle or -1 if there is no such subtitle.
+         */
+        int getIndexMatchingTime(int from, int to) {
+            if (consequential) {
+                /*
+                 * The subtitles that end before the segment can't cover it or any of the next segments. It's important
+                 * to skip them because otherwise an empty subtitle would block the subtitles after it.
+                 */
+                while (currentIndex < subtitles.getSubtitleCount() - 1 && subtitles.getToMillis(currentIndex) <= from) {
+                    currentIndex++;
+                }
+
+                int topIndexToCheck = Integer.min(currentIndex + 1, subtitles.getSubtitleCount() - 1);
+                for (int i = currentIndex; i <= topIndexToCheck; i++) {
+                    if (subtitleMatchesTime(subtitles, i, from, to)) {
+                        currentIndex = i;
+                        return i;
+                    }
+                }
+
+                return -1;
+            }
+
+            /*
+             * The points of time include the ends of all the subtitles so the subtitle covers the segment if and only
+             * if it starts not later than the segment and ends later than the segment's start.
+             */
+            while (startPosition < starts.length && (int) (starts[startPosition] >>> 32) <= from) {
+                activeIndices.add((int) starts[startPosition]);
+                startPosition++;
+            }
+            while (endPosition < ends.length && (int) (ends[endPosition] >>> 32) <= from) {
+                activeIndices.remove((int) ends[endPosition]);
+                endPosition++;
+            }
+
+            Integer result = activeIndices.ceiling(currentIndex);
+            if (result == null) {
+                return -1;
+            }
+
+            currentIndex = result;
+            return result;
+        }
+    }
+
+    /**
+     * A view of the subtitles with other times, the lines are taken from the original subtitles.
+     */
     @AllArgsConstructor
+    private static class SnappedSubtitles implements Subtitles {
+        private Subtitles subtitles;
+
+        private int[] froms;
+
+        private int[] tos;
+
+        @Override
+        public int getSubtitleCount() {
+            return subtitles.getSubtitleCount();
+        }
+
+        @Override
+        public int getFromMillis(int index) {
+            return froms[index];
+        }
+
+        @Override
+        public int getToMillis(int index) {
+            return tos[index];
+        }
+
+        @Override
+        public TextPool getTextPool(int index) {
+            return subtitles.getTextPool(index);
+        }
+
+        @Override
+        public int getFirstLine(int index) {
+            return subtitles.getFirstLine(index);
+        }
+
+        @Override
+        public int getLineCount(int index) {
+            return subtitles.getLineCount(index);
+        }
+    }
+
+    /**
+     * The lines are the ids of the lines, the hash code of the ids is calculated beforehand so that the subtitles with
+     * different lines can usually be told apart without comparing the lines.
+     */
     @Getter
     private static class MergerSubtitle {
-        private LocalTime from;
+        private int from;
 
         @Setter
-        private LocalTime to;
+        private int to;
 
-        @Setter
-        private List<MergerSubtitleLine> lines;
+        private int[] lines;
+
+        private int linesHashCode;
+
+        MergerSubtitle(int from, int to, int[] lines) {
+            this.from = from;
+            this.to = to;
+            setLines(lines);
+        }
+
+        void setLines(int[] lines) {
+            this.lines = lines;
+            linesHashCode = Arrays.hashCode(lines);
+        }
+
+        boolean haveSameLines(MergerSubtitle other) {
+            return linesHashCode == other.linesHashCode && Arrays.equals(lines, other.lines);
+        }
     }
 
-    @AllArgsConstructor
-    @Getter
-    @EqualsAndHashCode
-    private static class MergerSubtitleLine {
-        private String text;
+    /**
+     * Every distinct line of every source gets an integer id at the beginning of the merge so that later the lines can
+     * be compared as integers and the lines of the subtitles can be compared as arrays of integers. The equal lines of
+     * different sources get different ids, the ids of the lines of a source go after the ids of the lines of the
+     * previous sources. The text of the lines is needed only to make the result.
+     */
+    private static class LineIds {
+        /*
+         * The ids of the lines of the subtitles for each source, the ids for the subtitle go from the index
+         * subtitleLineStarts[source][index] (inclusive) to the index subtitleLineStarts[source][index + 1] (exclusive).
+         */
+        private int[][] subtitleIds;
+
+        private int[][] subtitleLineStarts;
+
+        private int[] sources;
+
+        private TextPool[] textPools;
+
+        private int[] lineIndices;
+
+        LineIds(List<Subtitles> allSubtitles) throws InterruptedException {
+            subtitleIds = new int[allSubtitles.size()][];
+            subtitleLineStarts = new int[allSubtitles.size()][];
 
-        private Source source;
+            int totalLineCount = 0;
+            for (Subtitles subtitles : allSubtitles) {
+                for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+                    totalLineCount += subtitles.getLineCount(i);
+                }
+            }
+
+            sources = new int[totalLineCount];
+            textPools = new TextPool[totalLineCount];
+            lineIndices = new int[totalLineCount];
+
+            int idCount = 0;
+            for (int source = 0; source < allSubtitles.size(); source++) {
+                Subtitles subtitles = allSubtitles.get(source);
+                Map<LineKey, Integer> sourceIds = new HashMap<>();
+
+                int[] lineStarts = new int[subtitles.getSubtitleCount() + 1];
+                for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+                    lineStarts[i + 1] = lineStarts[i] + subtitles.getLineCount(i);
+                }
+
+                int[] ids = new int[lineStarts[subtitles.getSubtitleCount()]];
+                for (int i = 0; i < subtitles.getSubtitleCount(); i++) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+
+                    TextPool textPool = subtitles.getTextPool(i);
+                    int firstLine = subtitles.getFirstLine(i);
+                    for (int j = 0; j < subtitles.getLineCount(i); j++) {
+                        LineKey key = new LineKey(textPool, firstLine + j);
+                        Integer id = sourceIds.get(key);
+                        if (id == null) {
+                            id = idCount++;
+                            sources[id] = source;
+                            textPools[id] = textPool;
+                            lineIndices[id] = firstLine + j;
+                            sourceIds.put(key, id);
+                        }
+
+                        ids[lineStarts[i] + j] = id;
+                    }
+                }
+
+                subtitleIds[source] = ids;
+                subtitleLineStarts[source] = lineStarts;
+            }
+        }
+
+        int getSourceCount() {
+            return subtitleIds.length;
+        }
+
+        int getLineCount(int source, int index) {
+            return subtitleLineStarts[source][index + 1] - subtitleLineStarts[source][index];
+        }
+
+        int getSource(int id) {
+            return sources[id];
+        }
+
+        TextPool getTextPool(int id) {
+            return textPools[id];
+        }
+
+        int getLineIndex(int id) {
+            return lineIndices[id];
+        }
+
+        /**
+         * Copies the ids of the lines of the subtitle to the array starting from the given position and returns the
+         * position after the copied ids.
+         */
+        int copyIds(int source, int index, int[] destination, int position) {
+            int from = subtitleLineStarts[source][index];
+            int count = subtitleLineStarts[source][index + 1] - from;
+            System.arraycopy(subtitleIds[source], from, destination, position, count);
+
+            return position + count;
+        }
     }
 
-    private enum Source {
-        UPPER_SUBTITLES,
-        LOWER_SUBTITLES
+    /**
+     * The key to find the id of a line, the lines are compared by their bytes so no strings are created.
+     */
+    @AllArgsConstructor
+    private static class LineKey {
+        private TextPool textPool;
+
+        private int index;
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof LineKey)) {
+                return false;
+            }
+
+            LineKey otherKey = (LineKey) other;
+
+            return textPool.lineEquals(index, otherKey.textPool, otherKey.index);
+        }
+
+        @Override
+        public int hashCode() {
+            return textPool.getLineHashCode(index);
+        }
     }
-}
\ No newline at end of file
+}
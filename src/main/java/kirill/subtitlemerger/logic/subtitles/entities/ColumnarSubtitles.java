@@ -0,0 +1,206 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the subtitles in arrays instead of creating objects for them: the times are in the arrays of milliseconds and
+ * the lines of all the subtitles are in one text pool, the subtitle with the index i has the lines of the pool from
+ * lineStarts[i] to lineStarts[i + 1]. So no matter how many subtitles there are, there are only a handful of objects.
+ */
+@CommonsLog
+public class ColumnarSubtitles implements Subtitles {
+    private int[] fromMillis;
+
+    private int[] toMillis;
+
+    private int[] lineStarts;
+
+    private TextPool textPool;
+
+    private int subtitleCount;
+
+    private ColumnarSubtitles(int[] fromMillis, int[] toMillis, int[] lineStarts, TextPool textPool, int count) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.lineStarts = lineStarts;
+        this.textPool = textPool;
+        this.subtitleCount = count;
+    }
+
+    /**
+     * Returns the subtitles of all the given parts one after another.
+     */
+    public static ColumnarSubtitles concat(List<ColumnarSubtitles> parts) {
+        int totalCount = 0;
+        List<TextPool> textPools = new ArrayList<>();
+        for (ColumnarSubtitles part : parts) {
+            totalCount += part.subtitleCount;
+            textPools.add(part.textPool);
+        }
+
+        int[] resultFromMillis = new int[totalCount];
+        int[] resultToMillis = new int[totalCount];
+        int[] resultLineStarts = new int[totalCount + 1];
+        int count = 0;
+        int lineCount = 0;
+        for (ColumnarSubtitles part : parts) {
+            System.arraycopy(part.fromMillis, 0, resultFromMillis, count, part.subtitleCount);
+            System.arraycopy(part.toMillis, 0, resultToMillis, count, part.subtitleCount);
+            for (int i = 0; i < part.subtitleCount; i++) {
+                resultLineStarts[count + i] = lineCount + part.lineStarts[i];
+            }
+
+            count += part.subtitleCount;
+            lineCount += part.textPool.getLineCount();
+        }
+        resultLineStarts[totalCount] = lineCount;
+
+        return new ColumnarSubtitles(
+                resultFromMillis,
+                resultToMillis,
+                resultLineStarts,
+                TextPool.concat(textPools),
+                totalCount
+        );
+    }
+
+    @Override
+    public int getSubtitleCount() {
+        return subtitleCount;
+    }
+
+    @Override
+    public int getFromMillis(int index) {
+        checkIndex(index);
+
+        return fromMillis[index];
+    }
+
+    @Override
+    public int getToMillis(int index) {
+        checkIndex(index);
+
+        return toMillis[index];
+    }
+
+    @Override
+    public TextPool getTextPool(int index) {
+        checkIndex(index);
+
+        return textPool;
+    }
+
+    @Override
+    public int getFirstLine(int index) {
+        checkIndex(index);
+
+        return lineStarts[index];
+    }
+
+    @Override
+    public int getLineCount(int index) {
+        checkIndex(index);
+
+        return lineStarts[index + 1] - lineStarts[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= subtitleCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", count " + subtitleCount);
+        }
+    }
+
+    /**
+     * Collects the subtitles one by one, the lines added after a subtitle is started belong to that subtitle.
+     */
+    public static class Builder {
+        private TextPool.Builder textPoolBuilder;
+
+        private int[] fromMillis = new int[16];
+
+        private int[] toMillis = new int[16];
+
+        private int[] lineStarts = new int[17];
+
+        private int subtitleCount;
+
+        public Builder() {
+            this(null);
+        }
+
+        /**
+         * The lines are interned with the given interner if it's not null, see TextPool.Builder.
+         */
+        public Builder(@Nullable LineInterner lineInterner) {
+            textPoolBuilder = new TextPool.Builder(lineInterner);
+        }
+
+        public int getSubtitleCount() {
+            return subtitleCount;
+        }
+
+        public Builder startSubtitle(int from, int to) {
+            if (subtitleCount == fromMillis.length) {
+                fromMillis = Arrays.copyOf(fromMillis, 2 * subtitleCount);
+                toMillis = Arrays.copyOf(toMillis, 2 * subtitleCount);
+                lineStarts = Arrays.copyOf(lineStarts, 2 * subtitleCount + 1);
+            }
+
+            fromMillis[subtitleCount] = from;
+            toMillis[subtitleCount] = to;
+            lineStarts[subtitleCount] = textPoolBuilder.getLineCount();
+            subtitleCount++;
+
+            return this;
+        }
+
+        public Builder addLine(CharSequence text, int from, int to) {
+            checkSubtitleStarted();
+            textPoolBuilder.addLine(text, from, to);
+
+            return this;
+        }
+
+        public Builder addUtf8Line(ByteBuffer rawData, int from, int to) {
+            checkSubtitleStarted();
+            textPoolBuilder.addUtf8Line(rawData, from, to);
+
+            return this;
+        }
+
+        public Builder addLine(TextPool pool, int index) {
+            checkSubtitleStarted();
+            textPoolBuilder.addLine(pool, index);
+
+            return this;
+        }
+
+        public ColumnarSubtitles build() {
+            TextPool textPool = textPoolBuilder.build();
+
+            int[] resultLineStarts = Arrays.copyOf(lineStarts, subtitleCount + 1);
+            resultLineStarts[subtitleCount] = textPool.getLineCount();
+
+            return new ColumnarSubtitles(
+                    Arrays.copyOf(fromMillis, subtitleCount),
+                    Arrays.copyOf(toMillis, subtitleCount),
+                    resultLineStarts,
+                    textPool,
+                    subtitleCount
+            );
+        }
+
+        private void checkSubtitleStarted() {
+            if (subtitleCount == 0) {
+                log.error("a subtitle has to be started before adding lines, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Deduplicates the lines of the subtitles across the text pools. Short lines often repeat across the tracks and the
+ * videos (music signs, speaker tags, sound descriptions, catchphrases), and the lines of the merged subtitles are
+ * copies of the lines of their sources, so a text pool can refer to a shared array with the UTF-8 bytes of a line
+ * instead of storing the bytes itself.
+ * The arrays are referenced weakly, so a line is removed from the interner as soon as there are no more text pools
+ * that use it.
+ * A line in a text pool is just a slice of a shared array, so an entry with its own array costs much more than the
+ * line itself and pays off only for the lines that repeat many times. That's why a line gets an entry only when it's
+ * seen for the second time (the lines seen once are remembered approximately in a small Bloom filter), and no entries
+ * are created while the estimated overhead of the interner exceeds the bytes saved by the hits by more than a fixed
+ * allowance, so the interner can't take much more memory than it saves. Long lines are not interned because they
+ * rarely repeat and short lines are not interned because a hit saves fewer bytes than the reference to the interned
+ * line takes. The class is thread-safe.
+ */
+public class LineInterner {
+    public static final int MAX_LINE_LENGTH = 64;
+
+    /* The size of the index and the reference a text pool keeps for every interned line. */
+    static final int REFERENCE_OVERHEAD = 8;
+
+    /* The approximate size of an entry together with the header of its array and the table slot. */
+    static final int ENTRY_OVERHEAD = 64;
+
+    public static final int MIN_LINE_LENGTH = REFERENCE_OVERHEAD + 1;
+
+    /* How much the overhead may exceed the savings, the entries have to be created before they can save anything. */
+    static final int OVERHEAD_ALLOWANCE = 1024 * 1024;
+
+    private static final int SEEN_LINE_BIT_COUNT = 1 << 20;
+
+    /*
+     * The filter is cleared after that many lines so that no more than a quarter of the bits are set and the lines seen
+     * once are rarely mistaken for the lines seen before. So only the lines repeating not too far apart get entries.
+     */
+    private static final int MAX_SEEN_LINE_COUNT = SEEN_LINE_BIT_COUNT / 8;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+
+    private int size;
+
+    private ReferenceQueue<byte[]> queue = new ReferenceQueue<>();
+
+    /* The Bloom filter with two bits per line for the lines that have been seen but don't have entries. */
+    private long[] seenLineBits = new long[SEEN_LINE_BIT_COUNT / Long.SIZE];
+
+    private int seenLineCount;
+
+    private long lookupCount;
+
+    private long hitCount;
+
+    private long createdEntryCount;
+
+    private long savedBytes;
+
+    /**
+     * Returns the shared array with the same bytes as the bytes of the given array from the index from (inclusive) to
+     * the index to (exclusive). If there is no such array yet, a new one is created and registered if the line has
+     * been seen often enough and the interner pays off. Returns null if the line is not interned, in that case the text
+     * pool should keep the bytes itself.
+     */
+    @Nullable
+    public synchronized byte[] intern(byte[] data, int from, int to) {
+        if (to - from > MAX_LINE_LENGTH || to - from < MIN_LINE_LENGTH) {
+            return null;
+        }
+
+        expungeStaleEntries();
+        lookupCount++;
+
+        int hash = getHash(data, from, to);
+        int index = getIndex(hash, table.length);
+        for (Entry entry = table[index]; entry != null; entry = entry.next) {
+            if (entry.hash != hash) {
+                continue;
+            }
+
+            byte[] line = entry.get();
+            if (line != null && Arrays.equals(line, 0, line.length, data, from, to)) {
+                hitCount++;
+                savedBytes += line.length;
+                return line;
+            }
+        }
+
+        if (!checkSeenAndMark(hash)) {
+            return null;
+        }
+
+        if (getOverheadBytes() > savedBytes + OVERHEAD_ALLOWANCE) {
+            return null;
+        }
+
+        byte[] line = Arrays.copyOfRange(data, from, to);
+        table[index] = new Entry(line, queue, hash, table[index]);
+        size++;
+        createdEntryCount++;
+        if (size > LOAD_FACTOR * table.length) {
+            resize();
+        }
+
+        return line;
+    }
+
+    public synchronized Statistics getStatistics() {
+        expungeStaleEntries();
+
+        return new Statistics(lookupCount, hitCount, size, savedBytes, getOverheadBytes());
+    }
+
+    /**
+     * The estimated number of bytes the interner has taken in addition to the bytes of the lines, the entries removed
+     * since then are counted as well the same way the hits for them are counted in the saved bytes.
+     */
+    private long getOverheadBytes() {
+        return SEEN_LINE_BIT_COUNT / 8 + ENTRY_OVERHEAD * createdEntryCount + REFERENCE_OVERHEAD * hitCount;
+    }
+
+    /**
+     * Returns true if the line with the given hash has probably been seen before, otherwise marks it as seen.
+     */
+    private boolean checkSeenAndMark(int hash) {
+        int firstBit = getIndex(hash, SEEN_LINE_BIT_COUNT);
+        int secondBit = getIndex(hash * 0x9E3779B9 >>> 12, SEEN_LINE_BIT_COUNT);
+        if (isBitSet(firstBit) && isBitSet(secondBit)) {
+            return true;
+        }
+
+        if (seenLineCount == MAX_SEEN_LINE_COUNT) {
+            Arrays.fill(seenLineBits, 0);
+            seenLineCount = 0;
+        }
+        seenLineBits[firstBit / Long.SIZE] |= 1L << firstBit;
+        seenLineBits[secondBit / Long.SIZE] |= 1L << secondBit;
+        seenLineCount++;
+
+        return false;
+    }
+
+    private boolean isBitSet(int bit) {
+        return (seenLineBits[bit / Long.SIZE] & (1L << bit)) != 0;
+    }
+
+    private static int getHash(byte[] data, int from, int to) {
+        int result = 1;
+        for (int i = from; i < to; i++) {
+            result = 31 * result + data[i];
+        }
+
+        return result ^ (result >>> 16);
+    }
+
+    private static int getIndex(int hash, int length) {
+        return hash & (length - 1);
+    }
+
+    private void resize() {
+        Entry[] newTable = new Entry[2 * table.length];
+
+        for (Entry head : table) {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+
+                int index = getIndex(entry.hash, newTable.length);
+                entry.next = newTable[index];
+                newTable[index] = entry;
+
+                entry = next;
+            }
+        }
+
+        table = newTable;
+    }
+
+    /**
+     * Removes the entries for the lines that are not used anywhere anymore the same way WeakHashMap does it.
+     */
+    private void expungeStaleEntries() {
+        Object staleReference;
+        while ((staleReference = queue.poll()) != null) {
+            Entry staleEntry = (Entry) staleReference;
+            int index = getIndex(staleEntry.hash, table.length);
+
+            Entry previous = null;
+            for (Entry entry = table[index]; entry != null; entry = entry.next) {
+                if (entry == staleEntry) {
+                    if (previous == null) {
+                        table[index] = entry.next;
+                    } else {
+                        previous.next = entry.next;
+                    }
+                    size--;
+                    break;
+                }
+
+                previous = entry;
+            }
+        }
+    }
+
+    private static class Entry extends WeakReference<byte[]> {
+        private int hash;
+
+        private Entry next;
+
+        Entry(byte[] line, ReferenceQueue<byte[]> queue, int hash, Entry next) {
+            super(line, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    /**
+     * The number of lookups and hits are counted since the creation of the interner, the saved bytes are the total
+     * length of the lines that have been found in the interner and the overhead bytes are the estimated size of the
+     * entries and the references to the interned lines. The interner pays off if the saved bytes exceed the overhead.
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class Statistics {
+        private long lookupCount;
+
+        private long hitCount;
+
+        private int lineCount;
+
+        private long savedBytes;
+
+        private long overheadBytes;
+
+        public double getHitRate() {
+            return lookupCount != 0 ? (double) hitCount / lookupCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d lookups, hit rate %.1f%%, %d lines, %d bytes saved, %d bytes of overhead",
+                    lookupCount,
+                    100 * getHitRate(),
+                    lineCount,
+                    savedBytes,
+                    overheadBytes
+            );
+        }
+    }
+}
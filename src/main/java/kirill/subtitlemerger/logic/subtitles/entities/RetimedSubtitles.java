@@ -0,0 +1,103 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.joda.time.DateTimeConstants;
+
+/**
+ * A view of the subtitles with the times changed on the fly - every time is multiplied by the scale (to convert
+ * between frame rates) and then the offset is added (to fix a constant delay). Nothing is copied, the lines are
+ * taken from the original subtitles, so it's cheap to try different offsets and scales. Shifting or scaling a view
+ * creates a view of the original subtitles with the combined changes instead of a view of the view.
+ * The times are clamped to the range of the day, so the subtitles that are moved beyond the start of the day become
+ * empty and stay at zero.
+ */
+@CommonsLog
+public class RetimedSubtitles implements Subtitles {
+    private static final int MAX_MILLIS = DateTimeConstants.MILLIS_PER_DAY - 1;
+
+    @Getter
+    private Subtitles original;
+
+    @Getter
+    private double scale;
+
+    @Getter
+    private int offsetMillis;
+
+    private RetimedSubtitles(Subtitles original, double scale, int offsetMillis) {
+        if (!(scale > 0) || Double.isInfinite(scale)) {
+            log.error("incorrect scale: " + scale + ", most likely a bug");
+            throw new IllegalStateException();
+        }
+
+        this.original = original;
+        this.scale = scale;
+        this.offsetMillis = offsetMillis;
+    }
+
+    public static RetimedSubtitles shift(Subtitles subtitles, int offsetMillis) {
+        if (subtitles instanceof RetimedSubtitles) {
+            RetimedSubtitles retimed = (RetimedSubtitles) subtitles;
+            return new RetimedSubtitles(retimed.original, retimed.scale, retimed.offsetMillis + offsetMillis);
+        }
+
+        return new RetimedSubtitles(subtitles, 1, offsetMillis);
+    }
+
+    /**
+     * Scales the times relative to the start of the day, for example 25 / 23.976 converts the subtitles made for a
+     * video with 25 frames per second to a video with 23.976 frames per second.
+     */
+    public static RetimedSubtitles scale(Subtitles subtitles, double scale) {
+        if (subtitles instanceof RetimedSubtitles) {
+            RetimedSubtitles retimed = (RetimedSubtitles) subtitles;
+            return new RetimedSubtitles(
+                    retimed.original,
+                    retimed.scale * scale,
+                    (int) Math.round(retimed.offsetMillis * scale)
+            );
+        }
+
+        return new RetimedSubtitles(subtitles, scale, 0);
+    }
+
+    @Override
+    public int getSubtitleCount() {
+        return original.getSubtitleCount();
+    }
+
+    @Override
+    public int getFromMillis(int index) {
+        return getRetimed(original.getFromMillis(index));
+    }
+
+    @Override
+    public int getToMillis(int index) {
+        return getRetimed(original.getToMillis(index));
+    }
+
+    @Override
+    public TextPool getTextPool(int index) {
+        return original.getTextPool(index);
+    }
+
+    @Override
+    public int getFirstLine(int index) {
+        return original.getFirstLine(index);
+    }
+
+    @Override
+    public int getLineCount(int index) {
+        return original.getLineCount(index);
+    }
+
+    /*
+     * The mapping doesn't decrease so the subtitles that went consequentially still go consequentially.
+     */
+    private int getRetimed(int millis) {
+        long result = Math.round(millis * scale) + offsetMillis;
+
+        return (int) Long.max(0, Long.min(result, MAX_MILLIS));
+    }
+}
@@ -6,6 +6,10 @@ import org.joda.time.LocalTime;
 
 import java.util.List;
 
+/**
+ * The lines of the subtitle are not stored separately, they are a range of lines of the text pool which is usually
+ * shared by all the subtitles of the file.
+ */
 @AllArgsConstructor
 @Getter
 public class Subtitle {
@@ -13,5 +17,20 @@ public class Subtitle {
 
     private LocalTime to;
 
-    private List<String> lines;
+    private TextPool textPool;
+
+    private int firstLine;
+
+    private int lineCount;
+
+    public Subtitle(LocalTime from, LocalTime to, List<String> lines) {
+        this(from, to, TextPool.from(lines), 0, lines.size());
+    }
+
+    /**
+     * Returns an unmodifiable view of the lines, the strings are created each time the elements are accessed.
+     */
+    public List<String> getLines() {
+        return textPool.getLines(firstLine, firstLine + lineCount);
+    }
 }
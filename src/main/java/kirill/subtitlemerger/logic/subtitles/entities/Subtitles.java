@@ -1,12 +1,65 @@
 package kirill.subtitlemerger.logic.subtitles.entities;
 
-import lombok.AllArgsConstructor;
-import lombok.Getter;
+import org.joda.time.LocalTime;
 
+import java.util.AbstractList;
 import java.util.List;
 
-@AllArgsConstructor
-@Getter
-public class Subtitles {
-    private List<Subtitle> subtitles;
+/**
+ * Subtitles are accessed by their indices so that the implementations can store them without creating an object for
+ * every subtitle (see ColumnarSubtitles). The times are the milliseconds of the day.
+ */
+public interface Subtitles {
+    int getSubtitleCount();
+
+    int getFromMillis(int index);
+
+    int getToMillis(int index);
+
+    /**
+     * Returns the pool with the lines of the subtitle with the given index, the lines of the subtitle are the lines of
+     * the pool from getFirstLine(index) to getFirstLine(index) + getLineCount(index).
+     */
+    TextPool getTextPool(int index);
+
+    int getFirstLine(int index);
+
+    int getLineCount(int index);
+
+    /**
+     * Returns an unmodifiable view of the lines of the subtitle, the strings are created each time the elements are
+     * accessed.
+     */
+    default List<String> getLines(int index) {
+        int firstLine = getFirstLine(index);
+        return getTextPool(index).getLines(firstLine, firstLine + getLineCount(index));
+    }
+
+    /**
+     * An adapter for the code that works with the subtitle objects - returns an unmodifiable view where the objects
+     * are created each time the elements are accessed.
+     */
+    default List<Subtitle> getSubtitles() {
+        return new AbstractList<>() {
+            @Override
+            public Subtitle get(int index) {
+                if (index < 0 || index >= size()) {
+                    throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+                }
+
+                return new Subtitle(
+                        LocalTime.fromMillisOfDay(getFromMillis(index)),
+                        LocalTime.fromMillisOfDay(getToMillis(index)),
+                        getTextPool(index),
+                        getFirstLine(index),
+                        getLineCount(index)
+                );
+            }
+
+            @Override
+            public int size() {
+                return getSubtitleCount();
+            }
+        };
+    }
 }
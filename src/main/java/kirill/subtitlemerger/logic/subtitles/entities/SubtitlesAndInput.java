@@ -1,47 +1,134 @@
 package kirill.subtitlemerger.logic.subtitles.entities;
 
+import kirill.subtitlemerger.logic.subtitles.EncodingDetector;
+import kirill.subtitlemerger.logic.subtitles.SubRipIndex;
 import kirill.subtitlemerger.logic.subtitles.SubRipParser;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.apache.commons.collections4.CollectionUtils;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 /**
  * A helper class that stores subtitles and their raw data. It is helpful because if the user provides a file with
  * subtitles it's impossible to guess the correct encoding so we should store the original raw data and give the ability
- * to change the encoding.
+ * to change the encoding. The raw data can be a memory-mapped file so that large files don't take space in the heap.
  */
+@CommonsLog
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 @Getter
 public class SubtitlesAndInput {
-    private byte[] rawData;
+    @Getter(AccessLevel.NONE)
+    private ByteBuffer rawData;
 
-    private Charset encoding;
+    /* Is built once for the raw data and is shared by all the objects for the same raw data. */
+    @Getter(AccessLevel.NONE)
+    private SubRipIndex index;
 
-    private Subtitles subtitles;
+    private Charset encoding;
 
     private boolean correctFormat;
 
+    /* Is used for the lines of the subtitles if it's not null, see LineInterner. */
+    @Getter(AccessLevel.NONE)
+    private LineInterner lineInterner;
+
+    /*
+     * Only the format is checked when the object is created, the subtitles themselves are created when they are needed
+     * for the first time. That way subtitles that are never merged or previewed don't take memory.
+     */
+    @Getter(AccessLevel.NONE)
+    private Subtitles subtitles;
+
     public static SubtitlesAndInput from(byte[] rawData, Charset encoding) {
-        Subtitles subtitles;
-        boolean correctFormat;
-        try {
-            subtitles = SubRipParser.from(new String(rawData, encoding));
-            correctFormat = true;
-        } catch (SubtitleFormatException e) {
-            subtitles = null;
-            correctFormat = false;
+        return from(ByteBuffer.wrap(rawData), encoding, null);
+    }
+
+    public static SubtitlesAndInput from(byte[] rawData, Charset encoding, @Nullable LineInterner lineInterner) {
+        return from(ByteBuffer.wrap(rawData), encoding, lineInterner);
+    }
+
+    public static SubtitlesAndInput from(ByteBuffer rawData, Charset encoding) {
+        return from(rawData, encoding, null);
+    }
+
+    public static SubtitlesAndInput from(ByteBuffer rawData, Charset encoding, @Nullable LineInterner lineInterner) {
+        ByteBuffer readOnlyData = rawData.asReadOnlyBuffer();
+        return from(readOnlyData, SubRipIndex.from(readOnlyData), encoding, lineInterner);
+    }
+
+    private static SubtitlesAndInput from(
+            ByteBuffer rawData,
+            SubRipIndex index,
+            Charset encoding,
+            LineInterner lineInterner
+    ) {
+        boolean correctFormat = SubRipParser.validate(index, encoding).isCorrectFormat();
+        return new SubtitlesAndInput(rawData, index, encoding, correctFormat, lineInterner, null);
+    }
+
+    /**
+     * Uses the most probable encoding (see EncodingDetector) or UTF-8 if the subtitles can't be parsed in any of the
+     * allowed encodings.
+     */
+    public static SubtitlesAndInput fromUnknownEncoding(byte[] rawData, @Nullable LineInterner lineInterner) {
+        return fromUnknownEncoding(ByteBuffer.wrap(rawData), lineInterner);
+    }
+
+    public static SubtitlesAndInput fromUnknownEncoding(ByteBuffer rawData, @Nullable LineInterner lineInterner) {
+        ByteBuffer readOnlyData = rawData.asReadOnlyBuffer();
+        SubRipIndex index = SubRipIndex.from(readOnlyData);
+
+        List<Charset> encodings = EncodingDetector.getRankedEncodings(index);
+        if (CollectionUtils.isEmpty(encodings)) {
+            return from(readOnlyData, index, StandardCharsets.UTF_8, lineInterner);
         }
 
-        return new SubtitlesAndInput(rawData, encoding, subtitles, correctFormat);
+        /* The detector returns only the encodings with the correct format so the format isn't checked again. */
+        return new SubtitlesAndInput(readOnlyData, index, encodings.get(0), true, lineInterner, null);
     }
 
     public int getSize() {
-        return rawData.length;
+        return rawData.remaining();
+    }
+
+    /**
+     * Returns the raw data decoded with the current encoding.
+     */
+    public String getText() {
+        return encoding.decode(rawData.duplicate()).toString();
+    }
+
+    /**
+     * Returns null if the subtitles have an incorrect format.
+     */
+    public synchronized Subtitles getSubtitles() {
+        if (subtitles == null && correctFormat) {
+            try {
+                subtitles = SubRipParser.from(index, encoding, lineInterner);
+                if (lineInterner != null) {
+                    log.debug("subtitles have been parsed, line interner: " + lineInterner.getStatistics());
+                }
+            } catch (SubtitleFormatException e) {
+                log.error("subtitles can't be parsed although the format has been checked, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+
+        return subtitles;
     }
 
+    /**
+     * The structure of the subtitles is not searched for again for most encodings, only the texts are decoded, see
+     * SubRipIndex.
+     */
     public SubtitlesAndInput changeEncoding(Charset newEncoding) {
-        return from(rawData, newEncoding);
+        return from(rawData, index, newEncoding, lineInterner);
     }
 }
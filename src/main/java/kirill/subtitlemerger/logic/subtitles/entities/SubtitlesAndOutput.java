@@ -4,20 +4,58 @@ import kirill.subtitlemerger.logic.subtitles.SubRipWriter;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 
 /**
- * A helper class that stores both subtitles and their textual representation. It is helpful because it usually makes
- * sense to generate a textual representation right after generating merged subtitles so the methods that do this should
- * be able to return a wrapper object containing both these values.
+ * A helper class that stores subtitles together with the format of their textual representation. The text is created
+ * only when it's requested because it's needed only for the previews, the subtitles are written to the files without
+ * creating the whole text so that the memory used doesn't depend on the size of the output.
  */
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 @Getter
 public class SubtitlesAndOutput {
     private Subtitles subtitles;
 
-    private String text;
+    private boolean plainText;
+
+    /*
+     * The text created the last time, it's referenced softly so that it can be reused (for example by the previews of
+     * the subtitles from MergeCache) but doesn't prevent the memory from being reclaimed when it's needed.
+     */
+    @Getter(AccessLevel.NONE)
+    private SoftReference<String> textReference;
 
     public static SubtitlesAndOutput from(Subtitles subtitles, boolean plainText) {
-        return new SubtitlesAndOutput(subtitles, SubRipWriter.toText(subtitles, plainText));
+        return new SubtitlesAndOutput(subtitles, plainText, null);
+    }
+
+    /**
+     * Creates the whole text if it hasn't been created yet or has been reclaimed, so it should be used only when the
+     * text is really needed (for the previews) and not on the JavaFX thread because it may take a while for large
+     * subtitles.
+     */
+    public synchronized String getText() {
+        String result = textReference != null ? textReference.get() : null;
+        if (result == null) {
+            result = SubRipWriter.toText(subtitles, plainText);
+            textReference = new SoftReference<>(result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes the text in UTF-8 without encoding the whole text at once. The file channel is passed so that large
+     * subtitles can be encoded in parallel.
+     */
+    public void write(File file) throws IOException {
+        try (FileOutputStream outputStream = FileUtils.openOutputStream(file)) {
+            SubRipWriter.write(subtitles, outputStream.getChannel(), plainText);
+        }
     }
 }
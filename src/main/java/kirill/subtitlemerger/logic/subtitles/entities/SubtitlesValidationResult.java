@@ -0,0 +1,28 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.joda.time.LocalTime;
+
+/**
+ * The result of checking the format of subtitles without creating the subtitles themselves.
+ */
+@AllArgsConstructor
+@Getter
+public class SubtitlesValidationResult {
+    private boolean correctFormat;
+
+    private int subtitleCount;
+
+    /* The earliest beginning of the subtitles, null if there are no subtitles or the format is incorrect. */
+    private LocalTime from;
+
+    /* The latest end of the subtitles, null if there are no subtitles or the format is incorrect. */
+    private LocalTime to;
+
+    /*
+     * The number of characters in the decoded text before the line where the error has been found, null if the format
+     * is correct.
+     */
+    private Integer errorOffset;
+}
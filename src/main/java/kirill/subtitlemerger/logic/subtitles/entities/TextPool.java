@@ -0,0 +1,518 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Stores the lines of the subtitles as UTF-8 slices of one byte array which is usually shared by all the subtitles of
+ * the file. Strings are created only when they are requested, so the subtitles that are just parsed, merged and written
+ * don't need a separate object for every line. The pool is immutable once it's built.
+ * Note that the lines are always valid UTF-8 so malformed input bytes are replaced the same way the decoder replaces
+ * them and unpaired surrogates in the strings are replaced with question marks the same way String::getBytes does it.
+ */
+@CommonsLog
+public class TextPool {
+    private static final byte REPLACEMENT_BYTE = '?';
+
+    private byte[] data;
+
+    /*
+     * The line with the index i occupies the bytes from lineStarts[i] to lineStarts[i + 1] unless it's interned, the
+     * interned lines don't occupy any bytes in the data array.
+     */
+    private int[] lineStarts;
+
+    /*
+     * The indices of the interned lines in ascending order and the interned lines themselves, both are null if there
+     * are no interned lines. Usually only a small part of the lines is interned so they are stored separately rather
+     * than in an array with an element for every line.
+     */
+    private int[] internedLineIndices;
+
+    private byte[][] internedLines;
+
+    private int lineCount;
+
+    private TextPool(byte[] data, int[] lineStarts, int[] internedLineIndices, byte[][] internedLines, int lineCount) {
+        this.data = data;
+        this.lineStarts = lineStarts;
+        this.internedLineIndices = internedLineIndices;
+        this.internedLines = internedLines;
+        this.lineCount = lineCount;
+    }
+
+    public static TextPool from(List<String> lines) {
+        Builder builder = new Builder();
+        for (String line : lines) {
+            builder.addLine(line, 0, line.length());
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Returns the pool with the lines of all the given pools one after another, so the line with the index i of the
+     * pool k gets the index i plus the total number of lines in the pools before k.
+     */
+    public static TextPool concat(List<TextPool> pools) {
+        int totalLength = 0;
+        int totalLineCount = 0;
+        int totalInternedLineCount = 0;
+        for (TextPool pool : pools) {
+            totalLength += pool.data.length;
+            totalLineCount += pool.lineCount;
+            totalInternedLineCount += pool.internedLines != null ? pool.internedLines.length : 0;
+        }
+
+        byte[] resultData = new byte[totalLength];
+        int[] resultLineStarts = new int[totalLineCount + 1];
+        int[] resultInternedLineIndices = totalInternedLineCount != 0 ? new int[totalInternedLineCount] : null;
+        byte[][] resultInternedLines = totalInternedLineCount != 0 ? new byte[totalInternedLineCount][] : null;
+        int dataLength = 0;
+        int lineCount = 0;
+        int internedLineCount = 0;
+        for (TextPool pool : pools) {
+            System.arraycopy(pool.data, 0, resultData, dataLength, pool.data.length);
+            for (int i = 0; i < pool.lineCount; i++) {
+                resultLineStarts[lineCount + i] = dataLength + pool.lineStarts[i];
+            }
+            if (pool.internedLines != null) {
+                for (int i = 0; i < pool.internedLines.length; i++) {
+                    resultInternedLineIndices[internedLineCount + i] = lineCount + pool.internedLineIndices[i];
+                }
+                System.arraycopy(
+                        pool.internedLines,
+                        0,
+                        resultInternedLines,
+                        internedLineCount,
+                        pool.internedLines.length
+                );
+                internedLineCount += pool.internedLines.length;
+            }
+
+            dataLength += pool.data.length;
+            lineCount += pool.lineCount;
+        }
+        resultLineStarts[totalLineCount] = totalLength;
+
+        return new TextPool(
+                resultData,
+                resultLineStarts,
+                resultInternedLineIndices,
+                resultInternedLines,
+                totalLineCount
+        );
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public String getLine(int index) {
+        checkIndex(index);
+
+        return new String(getLineArray(index), getLineOffset(index), getLineLengthUnchecked(index), UTF_8);
+    }
+
+    /**
+     * Returns the length of the line in bytes.
+     */
+    public int getLineLength(int index) {
+        checkIndex(index);
+
+        return getLineLengthUnchecked(index);
+    }
+
+    /**
+     * Returns a read-only buffer with the UTF-8 bytes of the line, the content is not copied.
+     */
+    public ByteBuffer getLineBytes(int index) {
+        checkIndex(index);
+
+        return ByteBuffer.wrap(getLineArray(index), getLineOffset(index), getLineLengthUnchecked(index))
+                .asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns true if the line is equal to the line from the other pool. The result is the same as for comparing the
+     * strings but no strings are created.
+     */
+    public boolean lineEquals(int index, TextPool otherPool, int otherIndex) {
+        checkIndex(index);
+        otherPool.checkIndex(otherIndex);
+
+        byte[] array = getLineArray(index);
+        int offset = getLineOffset(index);
+        int length = getLineLengthUnchecked(index);
+        byte[] otherArray = otherPool.getLineArray(otherIndex);
+        int otherOffset = otherPool.getLineOffset(otherIndex);
+        int otherLength = otherPool.getLineLengthUnchecked(otherIndex);
+
+        /* It's always the case for the lines interned with the same interner. */
+        if (array == otherArray && offset == otherOffset && length == otherLength) {
+            return true;
+        }
+
+        return Arrays.equals(array, offset, offset + length, otherArray, otherOffset, otherOffset + otherLength);
+    }
+
+    /**
+     * Returns a hash code of the line's bytes which is consistent with lineEquals (but not with String::hashCode).
+     */
+    public int getLineHashCode(int index) {
+        checkIndex(index);
+
+        byte[] array = getLineArray(index);
+        int offset = getLineOffset(index);
+
+        int result = 1;
+        for (int i = offset; i < offset + getLineLengthUnchecked(index); i++) {
+            result = 31 * result + array[i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns an unmodifiable view of the lines from the index fromIndex (inclusive) to the index toIndex (exclusive),
+     * the strings are created each time an element of the view is accessed.
+     */
+    public List<String> getLines(int fromIndex, int toIndex) {
+        if (fromIndex < 0 || toIndex > lineCount || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("from " + fromIndex + ", to " + toIndex + ", count " + lineCount);
+        }
+
+        return new Lines(fromIndex, toIndex);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= lineCount) {
+            throw new IndexOutOfBoundsException("index " + index + ", count " + lineCount);
+        }
+    }
+
+    /**
+     * Returns null if the line is not interned. The interned lines don't occupy any bytes in the data array so they
+     * have to be searched for only if the line is empty in the data array.
+     */
+    @Nullable
+    private byte[] getInternedLine(int index) {
+        if (internedLines == null || lineStarts[index] != lineStarts[index + 1]) {
+            return null;
+        }
+
+        int position = Arrays.binarySearch(internedLineIndices, index);
+        return position >= 0 ? internedLines[position] : null;
+    }
+
+    private byte[] getLineArray(int index) {
+        byte[] internedLine = getInternedLine(index);
+        return internedLine != null ? internedLine : data;
+    }
+
+    private int getLineOffset(int index) {
+        return getInternedLine(index) != null ? 0 : lineStarts[index];
+    }
+
+    private int getLineLengthUnchecked(int index) {
+        byte[] internedLine = getInternedLine(index);
+        return internedLine != null ? internedLine.length : lineStarts[index + 1] - lineStarts[index];
+    }
+
+    private class Lines extends AbstractList<String> implements RandomAccess {
+        private int fromIndex;
+
+        private int toIndex;
+
+        Lines(int fromIndex, int toIndex) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+            }
+
+            return getLine(fromIndex + index);
+        }
+
+        @Override
+        public int size() {
+            return toIndex - fromIndex;
+        }
+
+        /*
+         * The strings are equal if and only if their UTF-8 bytes are equal so for the lines from the pools it's enough
+         * to compare the bytes and the hash code of AbstractList stays consistent.
+         */
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Lines)) {
+                return super.equals(other);
+            }
+
+            Lines otherLines = (Lines) other;
+            if (otherLines.size() != size()) {
+                return false;
+            }
+
+            for (int i = 0; i < size(); i++) {
+                if (!lineEquals(fromIndex + i, otherLines.getPool(), otherLines.fromIndex + i)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private TextPool getPool() {
+            return TextPool.this;
+        }
+    }
+
+    /**
+     * Collects the lines one by one, the lines can be added as characters (they are encoded right into the pool), as
+     * UTF-8 bytes or as lines of other pools. If the line interner is passed, the lines are interned right after being
+     * added, the interned lines of other pools are reused as they are in any case.
+     */
+    public static class Builder {
+        private LineInterner lineInterner;
+
+        private byte[] data = new byte[1024];
+
+        private int dataLength;
+
+        private int[] lineStarts = new int[64];
+
+        private int[] internedLineIndices;
+
+        private byte[][] internedLines;
+
+        private int internedLineCount;
+
+        private int lineCount;
+
+        public Builder() {
+            this(null);
+        }
+
+        public Builder(@Nullable LineInterner lineInterner) {
+            this.lineInterner = lineInterner;
+        }
+
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        public Builder addLine(CharSequence text, int from, int to) {
+            ensureDataCapacity(3 * (to - from));
+
+            for (int i = from; i < to; i++) {
+                char current = text.charAt(i);
+                if (current < 0x80) {
+                    data[dataLength++] = (byte) current;
+                } else if (current < 0x800) {
+                    data[dataLength++] = (byte) (0xC0 | (current >> 6));
+                    data[dataLength++] = (byte) (0x80 | (current & 0x3F));
+                } else if (Character.isHighSurrogate(current)) {
+                    if (i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(current, text.charAt(i + 1));
+                        data[dataLength++] = (byte) (0xF0 | (codePoint >> 18));
+                        data[dataLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                        data[dataLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                        data[dataLength++] = (byte) (0x80 | (codePoint & 0x3F));
+                        i++;
+                    } else {
+                        data[dataLength++] = REPLACEMENT_BYTE;
+                    }
+                } else if (Character.isLowSurrogate(current)) {
+                    data[dataLength++] = REPLACEMENT_BYTE;
+                } else {
+                    data[dataLength++] = (byte) (0xE0 | (current >> 12));
+                    data[dataLength++] = (byte) (0x80 | ((current >> 6) & 0x3F));
+                    data[dataLength++] = (byte) (0x80 | (current & 0x3F));
+                }
+            }
+
+            return finishLine();
+        }
+
+        /**
+         * Adds the line with the UTF-8 bytes from the index from (inclusive) to the index to (exclusive) of the buffer.
+         * If the bytes are valid (which is almost always the case) they are copied as they are, otherwise they are
+         * decoded with replacements and encoded back.
+         */
+        public Builder addUtf8Line(ByteBuffer source, int from, int to) {
+            if (!isValidUtf8(source, from, to)) {
+                CharBuffer text = decodeWithReplacements(source, from, to);
+                return addLine(text, 0, text.length());
+            }
+
+            ensureDataCapacity(to - from);
+            ByteBuffer bytes = source.duplicate();
+            bytes.limit(to).position(from);
+            bytes.get(data, dataLength, to - from);
+            dataLength += to - from;
+
+            return finishLine();
+        }
+
+        public Builder addLine(TextPool pool, int index) {
+            int length = pool.getLineLength(index);
+
+            byte[] internedLine = pool.getInternedLine(index);
+            if (internedLine != null) {
+                setInternedLine(internedLine);
+                return finishLine();
+            }
+
+            ensureDataCapacity(length);
+            System.arraycopy(pool.data, pool.lineStarts[index], data, dataLength, length);
+            dataLength += length;
+
+            return finishLine();
+        }
+
+        public TextPool build() {
+            int[] resultLineStarts = Arrays.copyOf(lineStarts, lineCount + 1);
+            resultLineStarts[lineCount] = dataLength;
+
+            return new TextPool(
+                    Arrays.copyOf(data, dataLength),
+                    resultLineStarts,
+                    internedLineCount != 0 ? Arrays.copyOf(internedLineIndices, internedLineCount) : null,
+                    internedLineCount != 0 ? Arrays.copyOf(internedLines, internedLineCount) : null,
+                    lineCount
+            );
+        }
+
+        /**
+         * Should be called after the bytes of the line are added to the data array (if the line isn't interned).
+         */
+        private Builder finishLine() {
+            int lineStart = lineStarts[lineCount];
+            boolean alreadyInterned = internedLineCount != 0 && internedLineIndices[internedLineCount - 1] == lineCount;
+            if (lineInterner != null && !alreadyInterned && dataLength != lineStart) {
+                byte[] internedLine = lineInterner.intern(data, lineStart, dataLength);
+                if (internedLine != null) {
+                    dataLength = lineStart;
+                    setInternedLine(internedLine);
+                }
+            }
+
+            lineCount++;
+            if (lineCount == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, 2 * lineStarts.length);
+            }
+            lineStarts[lineCount] = dataLength;
+
+            return this;
+        }
+
+        private void setInternedLine(byte[] line) {
+            if (internedLines == null) {
+                internedLineIndices = new int[16];
+                internedLines = new byte[16][];
+            } else if (internedLineCount == internedLines.length) {
+                internedLineIndices = Arrays.copyOf(internedLineIndices, 2 * internedLineCount);
+                internedLines = Arrays.copyOf(internedLines, 2 * internedLineCount);
+            }
+
+            internedLineIndices[internedLineCount] = lineCount;
+            internedLines[internedLineCount] = line;
+            internedLineCount++;
+        }
+
+        private void ensureDataCapacity(int additionalLength) {
+            if (dataLength + additionalLength > data.length) {
+                data = Arrays.copyOf(data, Math.max(2 * data.length, dataLength + additionalLength));
+            }
+        }
+
+        /**
+         * Checks the bytes exactly the way the UTF-8 decoder does it, i.e. overlong forms, surrogates and code points
+         * above U+10FFFF are malformed.
+         */
+        private static boolean isValidUtf8(ByteBuffer source, int from, int to) {
+            int i = from;
+            while (i < to) {
+                int first = source.get(i) & 0xFF;
+                if (first < 0x80) {
+                    i++;
+                    continue;
+                }
+
+                int length;
+                int secondMin = 0x80;
+                int secondMax = 0xBF;
+                if (first >= 0xC2 && first <= 0xDF) {
+                    length = 2;
+                } else if (first >= 0xE0 && first <= 0xEF) {
+                    length = 3;
+                    if (first == 0xE0) {
+                        secondMin = 0xA0;
+                    } else if (first == 0xED) {
+                        secondMax = 0x9F;
+                    }
+                } else if (first >= 0xF0 && first <= 0xF4) {
+                    length = 4;
+                    if (first == 0xF0) {
+                        secondMin = 0x90;
+                    } else if (first == 0xF4) {
+                        secondMax = 0x8F;
+                    }
+                } else {
+                    return false;
+                }
+
+                if (i + length > to) {
+                    return false;
+                }
+
+                int second = source.get(i + 1) & 0xFF;
+                if (second < secondMin || second > secondMax) {
+                    return false;
+                }
+                for (int j = i + 2; j < i + length; j++) {
+                    if ((source.get(j) & 0xC0) != 0x80) {
+                        return false;
+                    }
+                }
+
+                i += length;
+            }
+
+            return true;
+        }
+
+        private static CharBuffer decodeWithReplacements(ByteBuffer source, int from, int to) {
+            CharsetDecoder decoder = UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            ByteBuffer bytes = source.duplicate();
+            bytes.limit(to).position(from);
+
+            try {
+                return decoder.decode(bytes);
+            } catch (CharacterCodingException e) {
+                log.error("decoding errors are replaced so there can't be an exception, most likely a bug");
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
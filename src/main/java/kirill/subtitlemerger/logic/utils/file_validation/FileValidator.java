@@ -7,8 +7,11 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class FileValidator {
     public static final int PATH_LENGTH_LIMIT = 4096;
@@ -17,43 +20,43 @@ public class FileValidator {
         File file = new File(path);
 
         if (StringUtils.isBlank(path)) {
-            return new InputFileInfo(file, InputFileNotValidReason.PATH_IS_EMPTY, null);
+            return new InputFileInfo(file, InputFileNotValidReason.PATH_IS_EMPTY, null, null);
         }
 
         if (path.length() > PATH_LENGTH_LIMIT) {
-            return new InputFileInfo(file, InputFileNotValidReason.PATH_IS_TOO_LONG, null);
+            return new InputFileInfo(file, InputFileNotValidReason.PATH_IS_TOO_LONG, null, null);
         }
 
         try {
             Path.of(path);
         } catch (InvalidPathException e) {
-            return new InputFileInfo(file, InputFileNotValidReason.INVALID_PATH, null);
+            return new InputFileInfo(file, InputFileNotValidReason.INVALID_PATH, null, null);
         }
 
         if (file.isDirectory()) {
-            return new InputFileInfo(file, InputFileNotValidReason.IS_A_DIRECTORY, null);
+            return new InputFileInfo(file, InputFileNotValidReason.IS_A_DIRECTORY, null, null);
         }
 
         if (!file.exists()) {
-            return new InputFileInfo(file, InputFileNotValidReason.DOES_NOT_EXIST, null);
+            return new InputFileInfo(file, InputFileNotValidReason.DOES_NOT_EXIST, null, null);
         }
 
         if (!CollectionUtils.isEmpty(validationOptions.getAllowedExtensions())) {
             String extension = FilenameUtils.getExtension(file.getAbsolutePath());
             if (StringUtils.isBlank(extension)) {
-                return new InputFileInfo(file, InputFileNotValidReason.NO_EXTENSION, null);
+                return new InputFileInfo(file, InputFileNotValidReason.NO_EXTENSION, null, null);
             }
             if (!validationOptions.getAllowedExtensions().contains(extension)) {
-                return new InputFileInfo(file, InputFileNotValidReason.NOT_ALLOWED_EXTENSION, null);
+                return new InputFileInfo(file, InputFileNotValidReason.NOT_ALLOWED_EXTENSION, null, null);
             }
         }
 
         if (!validationOptions.isAllowEmpty() && file.length() == 0) {
-            return new InputFileInfo(file, InputFileNotValidReason.FILE_IS_EMPTY, null);
+            return new InputFileInfo(file, InputFileNotValidReason.FILE_IS_EMPTY, null, null);
         }
 
         if (validationOptions.getMaxAllowedSize() != null && file.length() > validationOptions.getMaxAllowedSize()) {
-            return new InputFileInfo(file, InputFileNotValidReason.FILE_IS_TOO_BIG, null);
+            return new InputFileInfo(file, InputFileNotValidReason.FILE_IS_TOO_BIG, null, null);
         }
 
         byte[] content = null;
@@ -61,11 +64,20 @@ public class FileValidator {
             try {
                 content = FileUtils.readFileToByteArray(file);
             } catch (IOException e) {
-                return new InputFileInfo(file, InputFileNotValidReason.FAILED_TO_READ_CONTENT, null);
+                return new InputFileInfo(file, InputFileNotValidReason.FAILED_TO_READ_CONTENT, null, null);
             }
         }
 
-        return new InputFileInfo(file, null, content);
+        ByteBuffer mappedContent = null;
+        if (validationOptions.isMapContent()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mappedContent = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                return new InputFileInfo(file, InputFileNotValidReason.FAILED_TO_READ_CONTENT, null, null);
+            }
+        }
+
+        return new InputFileInfo(file, null, content, mappedContent);
     }
 
     public static OutputFileInfo getOutputFileInfo(String path, OutputFileValidationOptions validationOptions) {
@@ -4,6 +4,7 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 
 @AllArgsConstructor
 @Getter
@@ -13,4 +14,6 @@ public class InputFileInfo {
     private InputFileNotValidReason notValidReason;
 
     private byte[] content;
+
+    private ByteBuffer mappedContent;
 }
@@ -17,4 +17,10 @@ public class InputFileValidationOptions {
     private Long maxAllowedSize;
 
     private boolean loadContent;
+
+    /**
+     * If set the content is mapped into memory (read-only) instead of being loaded into a byte array. It saves the heap
+     * for large files but note that on Windows the file can't be deleted or renamed while the buffer is reachable.
+     */
+    private boolean mapContent;
 }
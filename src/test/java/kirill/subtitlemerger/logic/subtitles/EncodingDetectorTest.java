@@ -0,0 +1,66 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class EncodingDetectorTest {
+    @Test
+    public void testRussian() throws IOException {
+        assertThat(getBestEncoding("russian_utf_8.srt")).isEqualTo(StandardCharsets.UTF_8);
+        assertThat(getBestEncoding("russian_windows_1251.srt")).isEqualTo(Charset.forName("windows-1251"));
+        assertThat(getBestEncoding("russian_koi8_r.srt")).isEqualTo(Charset.forName("KOI8-R"));
+        assertThat(getBestEncoding("russian_ibm866.srt")).isEqualTo(Charset.forName("IBM866"));
+    }
+
+    /*
+     * Several encodings decode this file in exactly the same way so it's only checked that the text is right.
+     */
+    @Test
+    public void testWestern() throws IOException {
+        byte[] rawData = getRawData("western_windows_1252.srt");
+
+        assertThat(new String(rawData, getBestEncoding("western_windows_1252.srt")))
+                .isEqualTo(new String(rawData, Charset.forName("windows-1252")));
+    }
+
+    @Test
+    public void testIncorrect() {
+        byte[] rawData = "just an incorrect string".getBytes();
+
+        assertThat(EncodingDetector.getRankedEncodings(ByteBuffer.wrap(rawData))).isEmpty();
+    }
+
+    /*
+     * SubtitlesAndInput doesn't check the format for the detected encoding again so it has to be correct for all the
+     * returned encodings.
+     */
+    @Test
+    public void testCorrectFormat() throws IOException {
+        SubRipIndex index = SubRipIndex.from(ByteBuffer.wrap(getRawData("russian_windows_1251.srt")));
+
+        List<Charset> encodings = EncodingDetector.getRankedEncodings(index);
+        assertThat(encodings).isNotEmpty();
+        for (Charset encoding : encodings) {
+            assertThat(SubRipParser.validate(index, encoding).isCorrectFormat()).isTrue();
+        }
+    }
+
+    private Charset getBestEncoding(String fileName) throws IOException {
+        List<Charset> encodings = EncodingDetector.getRankedEncodings(ByteBuffer.wrap(getRawData(fileName)));
+        assertThat(encodings).isNotEmpty();
+
+        return encodings.get(0);
+    }
+
+    private byte[] getRawData(String fileName) throws IOException {
+        return IOUtils.toByteArray(getClass().getResourceAsStream("/logic/subtitles/encoding_detector/" + fileName));
+    }
+}
@@ -0,0 +1,67 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormatException;
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesAndOutput;
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class MergeCacheTest {
+    private static final String UPPER_TEXT = "1\n00:00:01,000 --> 00:00:02,000\nupper\n";
+
+    private static final String LOWER_TEXT = "1\n00:00:01,500 --> 00:00:03,000\n<i>lower</i>\n";
+
+    @Test
+    public void testSameContent() throws SubtitleFormatException, InterruptedException {
+        MergeCache cache = new MergeCache();
+
+        SubtitlesAndOutput first = cache.getMerged(
+                SubRipParser.from(UPPER_TEXT),
+                SubRipParser.from(LOWER_TEXT),
+                true,
+                false
+        );
+        SubtitlesAndOutput second = cache.getMerged(
+                SubRipParser.from(UPPER_TEXT),
+                SubRipParser.from(LOWER_TEXT),
+                true,
+                false
+        );
+
+        assertThat(second.getSubtitles()).isSameInstanceAs(first.getSubtitles());
+        assertThat(second.getText()).isSameInstanceAs(first.getText());
+        assertThat(cache.getStatistics().getHitCount()).isEqualTo(1L);
+        assertThat(cache.getStatistics().getMissCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void testPlainText() throws SubtitleFormatException, InterruptedException {
+        MergeCache cache = new MergeCache();
+        Subtitles upperSubtitles = SubRipParser.from(UPPER_TEXT);
+        Subtitles lowerSubtitles = SubRipParser.from(LOWER_TEXT);
+
+        SubtitlesAndOutput withTags = cache.getMerged(upperSubtitles, lowerSubtitles, true, false);
+        SubtitlesAndOutput plainText = cache.getMerged(upperSubtitles, lowerSubtitles, true, true);
+
+        assertThat(plainText.getSubtitles()).isSameInstanceAs(withTags.getSubtitles());
+        assertThat(plainText.getText()).isEqualTo(SubRipWriter.toText(withTags.getSubtitles(), true));
+        assertThat(withTags.getText()).isEqualTo(SubRipWriter.toText(withTags.getSubtitles(), false));
+        assertThat(cache.getStatistics().getHitCount()).isEqualTo(1L);
+        assertThat(cache.getStatistics().getEntryCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEviction() throws SubtitleFormatException, InterruptedException {
+        MergeCache cache = new MergeCache(1);
+        Subtitles upperSubtitles = SubRipParser.from(UPPER_TEXT);
+        Subtitles lowerSubtitles = SubRipParser.from(LOWER_TEXT);
+
+        cache.getMerged(upperSubtitles, lowerSubtitles, true, false);
+        cache.getMerged(lowerSubtitles, upperSubtitles, true, false);
+        cache.getMerged(upperSubtitles, lowerSubtitles, true, false);
+
+        assertThat(cache.getStatistics().getHitCount()).isEqualTo(0L);
+        assertThat(cache.getStatistics().getEntryCount()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,81 @@
+package kirill.subtitlemerger.logic.subtitles;
+
+import kirill.subtitlemerger.logic.subtitles.entities.ColumnarSubtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormatException;
+import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class StreamingSubtitleMergerTest {
+    @Test
+    public void testBasic() throws IOException, SubtitleFormatException, InterruptedException {
+        Subtitles upperSubtitles = SubRipParser.from(
+                IOUtils.toString(
+                        getClass().getResourceAsStream("/logic/subtitles/subtitle_merger/basic/upper.srt"),
+                        StandardCharsets.UTF_8
+                )
+        );
+        Subtitles lowerSubtitles = SubRipParser.from(
+                IOUtils.toString(
+                        getClass().getResourceAsStream("/logic/subtitles/subtitle_merger/basic/lower.srt"),
+                        StandardCharsets.UTF_8
+                )
+        );
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (SubRipWriter.StreamingWriter writer = new SubRipWriter.StreamingWriter(outputStream, false)) {
+            StreamingSubtitleMerger.mergeSubtitles(
+                    upperSubtitles.getSubtitles().iterator(),
+                    lowerSubtitles.getSubtitles().iterator(),
+                    writer
+            );
+        }
+        String expected = IOUtils.toString(
+                getClass().getResourceAsStream("/logic/subtitles/subtitle_merger/basic/result.srt"),
+                StandardCharsets.UTF_8
+        );
+
+        assertThat(outputStream.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+    }
+
+    /*
+     * The subtitles of both sources follow each other without gaps and overlap the subtitles of the other source, so
+     * with at most two buffered subtitles the buffered subtitles are split again and again. The merged subtitles on
+     * both sides of every split have the same lines and have to be combined into one subtitle the same way as when all
+     * the subtitles are merged at once.
+     */
+    @Test
+    public void testSplit() throws IOException, InterruptedException {
+        ColumnarSubtitles.Builder upperBuilder = new ColumnarSubtitles.Builder();
+        ColumnarSubtitles.Builder lowerBuilder = new ColumnarSubtitles.Builder();
+        for (int i = 0; i < 10; i++) {
+            upperBuilder.startSubtitle(10000 * i, 10000 * i + 10000).addLine("upper", 0, 5);
+            lowerBuilder.startSubtitle(10000 * i + 5000, 10000 * i + 15000).addLine("lower", 0, 5);
+        }
+        Subtitles upperSubtitles = upperBuilder.build();
+        Subtitles lowerSubtitles = lowerBuilder.build();
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (SubRipWriter.StreamingWriter writer = new SubRipWriter.StreamingWriter(outputStream, false)) {
+            StreamingSubtitleMerger.mergeSubtitles(
+                    Arrays.asList(
+                            upperSubtitles.getSubtitles().iterator(),
+                            lowerSubtitles.getSubtitles().iterator()
+                    ),
+                    writer,
+                    2
+            );
+        }
+        Subtitles expected = SubtitleMerger.mergeSubtitles(upperSubtitles, lowerSubtitles);
+
+        assertThat(expected.getSubtitleCount()).isEqualTo(1);
+        assertThat(outputStream.toString(StandardCharsets.UTF_8)).isEqualTo(SubRipWriter.toText(expected, false));
+    }
+}
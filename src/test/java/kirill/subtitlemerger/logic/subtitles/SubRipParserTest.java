@@ -1,17 +1,47 @@
 package kirill.subtitlemerger.logic.subtitles;
 
+import kirill.subtitlemerger.logic.LogicConstants;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitle;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormatException;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import kirill.subtitlemerger.logic.subtitles.entities.SubtitlesValidationResult;
 import org.apache.commons.io.IOUtils;
+import org.joda.time.LocalTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static com.google.common.truth.Truth.assertThat;
 
 public class SubRipParserTest {
+    /* The way time ranges were checked before the scanner, the scanner has to give exactly the same results. */
+    private static final Pattern TIME_RANGE_PATTERN = Pattern.compile(
+            "^(\\d{2}:\\d{2}:\\d{2},\\d{3}) --> (\\d{2}:\\d{2}:\\d{2},\\d{3})$"
+    );
+
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss,SSS");
+
+    private static final List<String> FILE_NAMES = Arrays.asList(
+            "basic.srt",
+            "empty_lines.srt",
+            "empty_trailing_lines.srt",
+            "one_subtitle.srt",
+            "tricky.srt",
+            "two_subtitles.srt",
+            "with_empty_subtitle.srt"
+    );
+
     @Test
     public void testBasic() throws IOException, SubtitleFormatException {
         Subtitles subtitles = SubRipParser.from(
@@ -176,6 +206,215 @@ public class SubRipParserTest {
         assertThat(subtitle.getLines().get(0)).isEqualTo("the actual second line");
     }
 
+    /*
+     * Parsing from a stream, a channel or a buffer should give the same result as parsing the whole text.
+     */
+    @Test
+    public void testStream() throws IOException, SubtitleFormatException {
+        Subtitles fromText = SubRipParser.from(
+                IOUtils.toString(
+                        getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/tricky.srt"),
+                        StandardCharsets.UTF_8
+                )
+        );
+
+        Subtitles fromStream;
+        try (InputStream inputStream = getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/tricky.srt")) {
+            fromStream = SubRipParser.from(inputStream, StandardCharsets.UTF_8);
+        }
+
+        Subtitles fromChannel;
+        try (InputStream inputStream = getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/tricky.srt")) {
+            fromChannel = SubRipParser.from(Channels.newChannel(inputStream), StandardCharsets.UTF_8);
+        }
+
+        ByteBuffer directBuffer;
+        try (InputStream inputStream = getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/tricky.srt")) {
+            byte[] rawData = IOUtils.toByteArray(inputStream);
+            directBuffer = ByteBuffer.allocateDirect(rawData.length);
+            directBuffer.put(rawData).flip();
+        }
+        Subtitles fromBuffer = SubRipParser.from(directBuffer, StandardCharsets.UTF_8);
+
+        assertThat(SubRipWriter.toText(fromStream, false)).isEqualTo(SubRipWriter.toText(fromText, false));
+        assertThat(SubRipWriter.toText(fromChannel, false)).isEqualTo(SubRipWriter.toText(fromText, false));
+        assertThat(SubRipWriter.toText(fromBuffer, false)).isEqualTo(SubRipWriter.toText(fromText, false));
+        assertThat(directBuffer.position()).isEqualTo(0);
+    }
+
+    /*
+     * Parsing in chunks should give the same result as parsing the whole text sequentially even if every subtitle gets
+     * into a separate chunk.
+     */
+    @Test
+    public void testParallel() throws IOException, SubtitleFormatException {
+        for (String fileName : FILE_NAMES) {
+            String text = IOUtils.toString(
+                    getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/" + fileName),
+                    StandardCharsets.UTF_8
+            );
+
+            assertThat(SubRipWriter.toText(SubRipParser.fromInParallel(text, 1), false))
+                    .isEqualTo(SubRipWriter.toText(SubRipParser.from(text), false));
+        }
+    }
+
+    /*
+     * Parsing the raw data in chunks found with the index should give the same result as parsing it sequentially, also
+     * for the incorrect subtitles and the subtitles with non-ASCII characters where chunks could start.
+     */
+    @Test
+    public void testParallelRawData() throws IOException {
+        List<String> suffixes = Arrays.asList(
+                "",
+                "\n\n100\n00:10:00,000 --> 00:10:01,000\ntext\n\nnot a number\n00:10:02,000 --> 00:10:03,000\n",
+                "\n\u2003\n\u0661\n00:10:00,000 --> 00:10:01,000\ntext\n\n101\n00:10:02,000 --> 00:10:03,000\n"
+        );
+
+        for (String fileName : FILE_NAMES) {
+            String text = IOUtils.toString(
+                    getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/" + fileName),
+                    StandardCharsets.UTF_8
+            );
+
+            for (String suffix : suffixes) {
+                for (Charset encoding : Arrays.asList(StandardCharsets.UTF_8, Charset.forName("windows-1251"))) {
+                    byte[] rawData = (text.trim() + suffix).getBytes(encoding);
+
+                    String expected;
+                    try {
+                        expected = SubRipWriter.toText(SubRipParser.from(rawData, encoding), false);
+                    } catch (SubtitleFormatException e) {
+                        expected = null;
+                    }
+
+                    String actual;
+                    try {
+                        SubRipIndex index = SubRipIndex.from(ByteBuffer.wrap(rawData));
+                        actual = SubRipWriter.toText(SubRipParser.fromInParallel(index, encoding, 1), false);
+                    } catch (SubtitleFormatException e) {
+                        actual = null;
+                    }
+
+                    assertThat(actual).isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test(expected = SubtitleFormatException.class)
+    public void testParallelIncorrectStart() throws SubtitleFormatException {
+        SubRipParser.fromInParallel("\u2003\n\n1\n00:00:01,000 --> 00:00:02,000\ntext", 1);
+    }
+
+    /*
+     * Getting the subtitles with the index should give the same result as parsing the raw data for any encoding
+     * including the ones the index can't be used for.
+     */
+    @Test
+    public void testIndex() throws IOException, SubtitleFormatException {
+        for (String fileName : FILE_NAMES) {
+            byte[] rawData = IOUtils.toByteArray(
+                    getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/" + fileName)
+            );
+            SubRipIndex index = SubRipIndex.from(ByteBuffer.wrap(rawData));
+
+            for (Charset encoding : LogicConstants.ALLOWED_ENCODINGS) {
+                String expected;
+                try {
+                    expected = SubRipWriter.toText(SubRipParser.from(rawData, encoding), false);
+                } catch (SubtitleFormatException e) {
+                    expected = null;
+                }
+
+                String actual;
+                try {
+                    actual = SubRipWriter.toText(SubRipParser.from(index, encoding), false);
+                } catch (SubtitleFormatException e) {
+                    actual = null;
+                }
+
+                assertThat(actual).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testValidate() throws IOException, SubtitleFormatException {
+        for (String fileName : FILE_NAMES) {
+            byte[] rawData = IOUtils.toByteArray(
+                    getClass().getResourceAsStream("/logic/subtitles/sub_rip_parser/" + fileName)
+            );
+            List<Subtitle> subtitles = SubRipParser.from(rawData, StandardCharsets.UTF_8).getSubtitles();
+
+            SubtitlesValidationResult result = SubRipParser.validate(rawData, StandardCharsets.UTF_8);
+            assertThat(result.isCorrectFormat()).isTrue();
+            assertThat(result.getSubtitleCount()).isEqualTo(subtitles.size());
+            assertThat(result.getFrom()).isEqualTo(subtitles.get(0).getFrom());
+            assertThat(result.getTo()).isEqualTo(subtitles.get(subtitles.size() - 1).getTo());
+            assertThat(result.getErrorOffset()).isNull();
+        }
+    }
+
+    @Test
+    public void testValidateIncorrect() {
+        String text = "1\n00:00:01,000 --> 00:00:02,000\ntext\n\nnot a number\n00:00:03,000 --> 00:00:04,000\ntext";
+
+        for (Charset encoding : Arrays.asList(StandardCharsets.UTF_8, StandardCharsets.UTF_16LE)) {
+            SubtitlesValidationResult result = SubRipParser.validate(text.getBytes(encoding), encoding);
+            assertThat(result.isCorrectFormat()).isFalse();
+            assertThat(result.getSubtitleCount()).isEqualTo(0);
+            assertThat(result.getErrorOffset()).isEqualTo(text.indexOf("00:00:03,000"));
+        }
+    }
+
+    @Test
+    public void testTimeRangeScanner() {
+        List<String> lines = Arrays.asList(
+                "00:00:01,000 --> 00:00:02,000",
+                " \t00:00:01,000 --> 00:00:02,000\u0001 ",
+                "23:59:59,999 --> 00:00:00,000",
+                "00:00:02,500 --> 00:00:01,500",
+                "24:00:00,000 --> 00:00:02,000",
+                "00:60:00,000 --> 00:00:02,000",
+                "00:00:60,000 --> 00:00:02,000",
+                "00:00:01,000 --> 00:00:02,000 ",
+                "00:00:01,000 -->  00:00:02,000",
+                "00:00:01,000 -> 00:00:02,000",
+                "00:00:01.000 --> 00:00:02,000",
+                "0:00:01,000 --> 00:00:02,000",
+                "00:00:01,0000 --> 00:00:02,000",
+                "00:00:01,000 --> 00:00:02,00",
+                "00:00:01,000 --> 00:00:02,000\u2028",
+                "\u00A000:00:01,000 --> 00:00:02,000",
+                "00:00:0a,000 --> 00:00:02,000",
+                "٠٠:00:01,000 --> 00:00:02,000",
+                "-->",
+                "1",
+                ""
+        );
+
+        for (String line : lines) {
+            Matcher matcher = TIME_RANGE_PATTERN.matcher(line.trim());
+            long expected;
+            if (!matcher.matches()) {
+                expected = SubRipParser.NOT_TIME_RANGE;
+            } else {
+                try {
+                    LocalTime first = TIME_FORMATTER.parseLocalTime(matcher.group(1));
+                    LocalTime second = TIME_FORMATTER.parseLocalTime(matcher.group(2));
+                    long from = Math.min(first.getMillisOfDay(), second.getMillisOfDay());
+                    long to = Math.max(first.getMillisOfDay(), second.getMillisOfDay());
+                    expected = from << 32 | to;
+                } catch (IllegalArgumentException e) {
+                    expected = SubRipParser.INCORRECT_TIME_RANGE;
+                }
+            }
+
+            assertThat(SubRipParser.scanTimeRange(line)).isEqualTo(expected);
+        }
+    }
+
     @Test(expected = SubtitleFormatException.class)
     public void testIncorrect() throws SubtitleFormatException {
         SubRipParser.from("just an incorrect string");
@@ -1,12 +1,21 @@
 package kirill.subtitlemerger.logic.subtitles;
 
+import kirill.subtitlemerger.logic.subtitles.entities.ColumnarSubtitles;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormatException;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -51,4 +60,95 @@ public class SubRipWriterTest {
         );
         assertThat(SubRipWriter.toText(subtitles, true)).isEqualTo(expectedPlain);
     }
+
+    /*
+     * The text is several times longer than the buffer and has multibyte characters so they are split between the
+     * buffers.
+     */
+    @Test
+    public void testWrite() throws IOException {
+        Subtitles subtitles = generateSubtitles();
+
+        for (boolean plainText : new boolean[]{false, true}) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            SubRipWriter.write(subtitles, outputStream, plainText);
+
+            String expected = SubRipWriter.toText(subtitles, plainText);
+            assertThat(outputStream.toString(StandardCharsets.UTF_8)).isEqualTo(expected);
+        }
+    }
+
+    /*
+     * The parts are small so that there are many of them and the buffers of the parts are not full, and only a few of
+     * them can be encoded at the same time so that the later parts are encoded after the first ones are written.
+     */
+    @Test
+    public void testWriteInParallel() throws IOException {
+        Subtitles subtitles = generateSubtitles();
+
+        File file = File.createTempFile("subtitles", ".srt");
+        try {
+            for (boolean plainText : new boolean[]{false, true}) {
+                try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                    SubRipWriter.writeInParallel(subtitles, outputStream.getChannel(), plainText, 7, 3);
+                }
+
+                String expected = SubRipWriter.toText(subtitles, plainText);
+                assertThat(FileUtils.readFileToString(file, StandardCharsets.UTF_8)).isEqualTo(expected);
+            }
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    private static Subtitles generateSubtitles() {
+        ColumnarSubtitles.Builder result = new ColumnarSubtitles.Builder();
+        for (int i = 0; i < 1000; i++) {
+            String line = "<i>Строка " + i + "</i> \uD83C\uDFB5";
+            result.startSubtitle(1000 * i, 1000 * i + 500).addLine(line, 0, line.length());
+        }
+
+        return result.build();
+    }
+
+    /*
+     * The tags used to be removed with the regular expressions so the result should be the same as theirs, both for the
+     * usual lines and for the random mixes of brackets and line terminators.
+     */
+    @Test
+    public void testPlainText() {
+        List<String> texts = new ArrayList<>(Arrays.asList(
+                "<i>text</i>",
+                "{\\an8}text",
+                "<test",
+                "test>",
+                "<>",
+                "<>>",
+                "{}",
+                "{}}",
+                "{<b>}",
+                "{<b>a}",
+                "<{>}",
+                "<a\nb>",
+                "<\u2028>>",
+                "{a\u0085b}",
+                "<<a>",
+                "\uD83C<\uDFB5>"
+        ));
+
+        Random random = new Random(1);
+        String characters = "<>{}a \n\r\u0085\u2028\u2029";
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < random.nextInt(12); j++) {
+                text.append(characters.charAt(random.nextInt(characters.length())));
+            }
+            texts.add(text.toString());
+        }
+
+        for (String text : texts) {
+            String expected = text.replaceAll("<.+?>", "").replaceAll("\\{.+?}", "");
+            assertThat(SubRipWriter.getPlainText(text)).isEqualTo(expected);
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package kirill.subtitlemerger.logic.subtitles;
 
+import kirill.subtitlemerger.logic.subtitles.entities.RetimedSubtitles;
 import kirill.subtitlemerger.logic.subtitles.entities.SubtitleFormatException;
 import kirill.subtitlemerger.logic.subtitles.entities.Subtitles;
 import org.apache.commons.io.IOUtils;
@@ -7,6 +8,9 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -97,4 +101,130 @@ public class SubtitleMergerTest {
 
         assertThat(SubRipWriter.toText(merged, false)).isEqualTo(expected);
     }
+
+    /*
+     * The first subtitle in upper.srt is a long sign that overlaps several dialogue subtitles which overlap each other
+     * as well, so there are several subtitles that cover the same points of time in one track.
+     */
+    @Test
+    public void testLongOverlaps() throws SubtitleFormatException, InterruptedException, IOException {
+        Subtitles upperSubtitles = SubRipParser.from(
+                IOUtils.toString(
+                        getClass().getResourceAsStream(
+                                "/logic/subtitles/subtitle_merger/long_overlaps/upper.srt"
+                        ),
+                        StandardCharsets.UTF_8
+                )
+        );
+        Subtitles lowerSubtitles = SubRipParser.from(
+                IOUtils.toString(
+                        getClass().getResourceAsStream(
+                                "/logic/subtitles/subtitle_merger/long_overlaps/lower.srt"
+                        ),
+                        StandardCharsets.UTF_8
+                )
+        );
+
+        Subtitles merged = SubtitleMerger.mergeSubtitles(upperSubtitles, lowerSubtitles);
+        String expected = IOUtils.toString(
+                getClass().getResourceAsStream("/logic/subtitles/subtitle_merger/long_overlaps/result.srt"),
+                StandardCharsets.UTF_8
+        );
+
+        assertThat(SubRipWriter.toText(merged, false)).isEqualTo(expected);
+    }
+
+    /*
+     * The subtitles in middle.srt and lower.srt start later than in upper.srt, the missing lines should be added to
+     * avoid the jumps the same way they are added when there are only two sources.
+     */
+    @Test
+    public void testThreeSources() throws SubtitleFormatException, InterruptedException, IOException {
+        List<Subtitles> allSubtitles = new ArrayList<>();
+        for (String name : Arrays.asList("upper", "middle", "lower")) {
+            allSubtitles.add(
+                    SubRipParser.from(
+                            IOUtils.toString(
+                                    getClass().getResourceAsStream(
+                                            "/logic/subtitles/subtitle_merger/three_sources/" + name + ".srt"
+                                    ),
+                                    StandardCharsets.UTF_8
+                            )
+                    )
+            );
+        }
+
+        Subtitles merged = SubtitleMerger.mergeSubtitles(allSubtitles);
+        String expected = IOUtils.toString(
+                getClass().getResourceAsStream("/logic/subtitles/subtitle_merger/three_sources/result.srt"),
+                StandardCharsets.UTF_8
+        );
+
+        assertThat(SubRipWriter.toText(merged, false)).isEqualTo(expected);
+    }
+
+    /*
+     * The time is split at every gap between the subtitles, the result should be the same as after the sequential
+     * merge.
+     */
+    @Test
+    public void testInParallel() throws SubtitleFormatException, InterruptedException, IOException {
+        List<Subtitles> allSubtitles = new ArrayList<>();
+        for (String name : Arrays.asList("upper", "lower")) {
+            allSubtitles.add(
+                    SubRipParser.from(
+                            IOUtils.toString(
+                                    getClass().getResourceAsStream(
+                                            "/logic/subtitles/subtitle_merger/basic/" + name + ".srt"
+                                    ),
+                                    StandardCharsets.UTF_8
+                            )
+                    )
+            );
+        }
+
+        Subtitles merged = SubtitleMerger.mergeInParallel(allSubtitles, 1);
+        String expected = IOUtils.toString(
+                getClass().getResourceAsStream("/logic/subtitles/subtitle_merger/basic/result.srt"),
+                StandardCharsets.UTF_8
+        );
+
+        assertThat(SubRipWriter.toText(merged, false)).isEqualTo(expected);
+    }
+
+    /*
+     * The second upper subtitle is shorter than the tolerance so it keeps its original times.
+     */
+    @Test
+    public void testSnapPointsOfTime() throws SubtitleFormatException, InterruptedException {
+        Subtitles upperSubtitles = SubRipParser.from(
+                "1\n00:00:01,000 --> 00:00:02,000\nupper 1\n\n2\n00:00:03,000 --> 00:00:03,030\nupper 2\n"
+        );
+        Subtitles lowerSubtitles = SubRipParser.from("1\n00:00:01,020 --> 00:00:01,980\nlower 1\n");
+
+        Subtitles merged = SubtitleMerger.mergeSubtitles(upperSubtitles, lowerSubtitles, 50);
+        String expected = "1\n00:00:01,000 --> 00:00:01,980\nupper 1\nlower 1\n\n"
+                + "2\n00:00:03,000 --> 00:00:03,030\nupper 2";
+
+        assertThat(SubRipWriter.toText(merged, false)).isEqualTo(expected);
+    }
+
+    /*
+     * The first two lower subtitles become empty after the shift and shouldn't affect the rest of the subtitles.
+     */
+    @Test
+    public void testRetimed() throws SubtitleFormatException, InterruptedException {
+        Subtitles upperSubtitles = SubRipParser.from("1\n00:00:04,000 --> 00:00:05,000\nupper 1\n");
+        Subtitles lowerSubtitles = SubRipParser.from(
+                "1\n00:00:01,000 --> 00:00:02,000\nlower 1\n\n"
+                        + "2\n00:00:02,500 --> 00:00:03,000\nlower 2\n\n"
+                        + "3\n00:00:03,000 --> 00:00:06,000\nlower 3\n"
+        );
+
+        Subtitles merged = SubtitleMerger.mergeSubtitles(upperSubtitles, RetimedSubtitles.shift(lowerSubtitles, -3000));
+        String expected = "1\n00:00:00,000 --> 00:00:03,000\nlower 3\n\n"
+                + "2\n00:00:04,000 --> 00:00:05,000\nupper 1";
+
+        assertThat(SubRipWriter.toText(merged, false)).isEqualTo(expected);
+    }
 }
@@ -0,0 +1,57 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import org.joda.time.LocalTime;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class ColumnarSubtitlesTest {
+    @Test
+    public void testBuilder() {
+        ColumnarSubtitles subtitles = new ColumnarSubtitles.Builder()
+                .startSubtitle(1000, 2000)
+                .addLine("first", 0, 5)
+                .addLine("second", 0, 6)
+                .startSubtitle(3000, 4000)
+                .startSubtitle(5000, 6000)
+                .addLine("third", 0, 5)
+                .build();
+
+        assertThat(subtitles.getSubtitleCount()).isEqualTo(3);
+        assertThat(subtitles.getFromMillis(1)).isEqualTo(3000);
+        assertThat(subtitles.getToMillis(2)).isEqualTo(6000);
+        assertThat(subtitles.getLines(0)).containsExactly("first", "second");
+        assertThat(subtitles.getLines(1)).isEmpty();
+        assertThat(subtitles.getLines(2)).containsExactly("third");
+
+        Subtitle subtitle = subtitles.getSubtitles().get(2);
+        assertThat(subtitle.getFrom()).isEqualTo(new LocalTime(0, 0, 5));
+        assertThat(subtitle.getTo()).isEqualTo(new LocalTime(0, 0, 6));
+        assertThat(subtitle.getLines()).containsExactly("third");
+    }
+
+    @Test
+    public void testConcat() {
+        ColumnarSubtitles first = new ColumnarSubtitles.Builder()
+                .startSubtitle(0, 1000)
+                .addLine("a", 0, 1)
+                .startSubtitle(1000, 2000)
+                .addLine("b", 0, 1)
+                .addLine("c", 0, 1)
+                .build();
+        ColumnarSubtitles second = new ColumnarSubtitles.Builder().build();
+        ColumnarSubtitles third = new ColumnarSubtitles.Builder()
+                .startSubtitle(3000, 4000)
+                .addLine("d", 0, 1)
+                .build();
+
+        ColumnarSubtitles subtitles = ColumnarSubtitles.concat(Arrays.asList(first, second, third));
+
+        assertThat(subtitles.getSubtitleCount()).isEqualTo(3);
+        assertThat(subtitles.getLines(1)).containsExactly("b", "c");
+        assertThat(subtitles.getFromMillis(2)).isEqualTo(3000);
+        assertThat(subtitles.getLines(2)).containsExactly("d");
+    }
+}
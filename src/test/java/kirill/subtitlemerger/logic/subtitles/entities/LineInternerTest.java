@@ -0,0 +1,118 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class LineInternerTest {
+    private static final String MUSIC = "[MUSIC PLAYING] ♪";
+
+    @Test
+    public void testIntern() {
+        LineInterner lineInterner = new LineInterner();
+        byte[] first = MUSIC.getBytes(UTF_8);
+        byte[] second = ("-- " + MUSIC + " --").getBytes(UTF_8);
+
+        assertThat(lineInterner.intern(first, 0, first.length)).isNull();
+        byte[] firstInterned = lineInterner.intern(first, 0, first.length);
+        byte[] secondInterned = lineInterner.intern(second, 3, second.length - 3);
+
+        assertThat(firstInterned).isNotNull();
+        assertThat(firstInterned).isSameInstanceAs(secondInterned);
+        assertThat(Arrays.equals(firstInterned, first)).isTrue();
+
+        byte[] tooLong = new byte[LineInterner.MAX_LINE_LENGTH + 1];
+        assertThat(lineInterner.intern(tooLong, 0, tooLong.length)).isNull();
+        assertThat(lineInterner.intern(tooLong, 0, tooLong.length)).isNull();
+        byte[] tooShort = "[MUSIC]".getBytes(UTF_8);
+        assertThat(lineInterner.intern(tooShort, 0, tooShort.length)).isNull();
+        assertThat(lineInterner.intern(tooShort, 0, tooShort.length)).isNull();
+
+        LineInterner.Statistics statistics = lineInterner.getStatistics();
+        assertThat(statistics.getLookupCount()).isEqualTo(3L);
+        assertThat(statistics.getHitCount()).isEqualTo(1L);
+        assertThat(statistics.getLineCount()).isEqualTo(1);
+        assertThat(statistics.getSavedBytes()).isEqualTo((long) first.length);
+    }
+
+    @Test
+    public void testTextPools() {
+        LineInterner lineInterner = new LineInterner();
+
+        TextPool initial = new TextPool.Builder(lineInterner).addLine(MUSIC, 0, MUSIC.length()).build();
+        TextPool first = new TextPool.Builder(lineInterner)
+                .addLine(MUSIC, 0, MUSIC.length())
+                .addLine("first line", 0, 10)
+                .build();
+        TextPool second = new TextPool.Builder(lineInterner)
+                .addLine("second line", 0, 11)
+                .addLine(MUSIC, 0, MUSIC.length())
+                .build();
+        TextPool merged = new TextPool.Builder().addLine(first, 1).addLine(second, 1).build();
+        TextPool concatenated = TextPool.concat(Arrays.asList(initial, first, second));
+
+        assertThat(initial.lineEquals(0, second, 1)).isTrue();
+        assertThat(first.lineEquals(0, second, 1)).isTrue();
+        assertThat(first.lineEquals(1, second, 0)).isFalse();
+        assertThat(merged.getLines(0, 2)).containsExactly("first line", MUSIC);
+        assertThat(concatenated.getLines(0, 5)).containsExactly(MUSIC, MUSIC, "first line", "second line", MUSIC);
+        assertThat(concatenated.getLineHashCode(4)).isEqualTo(merged.getLineHashCode(1));
+        assertThat(concatenated.getLineLength(1)).isEqualTo(MUSIC.getBytes(UTF_8).length);
+        assertThat(lineInterner.getStatistics().getLineCount()).isEqualTo(1);
+        assertThat(lineInterner.getStatistics().getHitCount()).isEqualTo(1L);
+    }
+
+    /*
+     * The retained heap is measured for the text pools of twenty tracks. If the lines hardly repeat the interner may
+     * take a little more memory than it saves but no more than its allowance, if the tracks are the same it should save
+     * a considerable part of the memory.
+     */
+    @Test
+    public void testRetainedHeap() {
+        long withoutInterner = getRetainedHeap(false, null);
+        long withInterner = getRetainedHeap(false, new LineInterner());
+        assertThat(withInterner).isLessThan(withoutInterner + 2 * LineInterner.OVERHEAD_ALLOWANCE);
+
+        withoutInterner = getRetainedHeap(true, null);
+        withInterner = getRetainedHeap(true, new LineInterner());
+        assertThat(withInterner).isLessThan(withoutInterner * 8 / 10);
+    }
+
+    private static long getRetainedHeap(boolean sameTracks, LineInterner lineInterner) {
+        long before = getUsedHeap();
+
+        List<TextPool> pools = new ArrayList<>();
+        for (int track = 0; track < 20; track++) {
+            TextPool.Builder builder = new TextPool.Builder(lineInterner);
+            for (int i = 0; i < 20000; i++) {
+                String line;
+                if (i % 10 == 0) {
+                    line = i % 20 == 0 ? MUSIC : "What are you doing here?";
+                } else {
+                    line = "The line number " + i + " of the track " + (sameTracks ? 0 : track) + ".";
+                }
+                builder.addLine(line, 0, line.length());
+            }
+            pools.add(builder.build());
+        }
+
+        long result = getUsedHeap() - before;
+        assertThat(pools).hasSize(20);
+
+        return result;
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
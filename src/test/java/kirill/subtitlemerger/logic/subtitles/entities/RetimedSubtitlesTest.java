@@ -0,0 +1,41 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertThat;
+
+public class RetimedSubtitlesTest {
+    private static final ColumnarSubtitles SUBTITLES = new ColumnarSubtitles.Builder()
+            .startSubtitle(1000, 2000)
+            .addLine("first", 0, 5)
+            .startSubtitle(3000, 5000)
+            .addLine("second", 0, 6)
+            .build();
+
+    @Test
+    public void testShift() {
+        RetimedSubtitles subtitles = RetimedSubtitles.shift(SUBTITLES, -1500);
+
+        assertThat(subtitles.getFromMillis(0)).isEqualTo(0);
+        assertThat(subtitles.getToMillis(0)).isEqualTo(500);
+        assertThat(subtitles.getFromMillis(1)).isEqualTo(1500);
+        assertThat(subtitles.getToMillis(1)).isEqualTo(3500);
+        assertThat(subtitles.getLines(1)).containsExactly("second");
+    }
+
+    @Test
+    public void testScaleAndShift() {
+        RetimedSubtitles subtitles = RetimedSubtitles.shift(RetimedSubtitles.scale(SUBTITLES, 1.5), 100);
+        subtitles = RetimedSubtitles.shift(subtitles, 100);
+
+        assertThat(subtitles.getOriginal()).isSameInstanceAs(SUBTITLES);
+        assertThat(subtitles.getFromMillis(0)).isEqualTo(1700);
+        assertThat(subtitles.getToMillis(1)).isEqualTo(7700);
+
+        subtitles = RetimedSubtitles.scale(subtitles, 2);
+
+        assertThat(subtitles.getOriginal()).isSameInstanceAs(SUBTITLES);
+        assertThat(subtitles.getFromMillis(0)).isEqualTo(3400);
+        assertThat(subtitles.getToMillis(1)).isEqualTo(15400);
+    }
+}
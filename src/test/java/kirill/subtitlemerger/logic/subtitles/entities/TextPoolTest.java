@@ -0,0 +1,61 @@
+package kirill.subtitlemerger.logic.subtitles.entities;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class TextPoolTest {
+    @Test
+    public void testLines() {
+        List<String> lines = Arrays.asList("first", "", "вторая строка", "third 😀");
+        TextPool pool = TextPool.from(lines);
+
+        assertThat(pool.getLineCount()).isEqualTo(4);
+        assertThat(pool.getLines(0, 4)).isEqualTo(lines);
+        assertThat(pool.getLines(1, 3)).containsExactly("", "вторая строка");
+        assertThat(pool.getLineLength(2)).isEqualTo("вторая строка".getBytes(UTF_8).length);
+    }
+
+    @Test
+    public void testUtf8Lines() {
+        byte[] rawData = "text, текст".getBytes(UTF_8);
+        byte[] malformedRawData = {'a', (byte) 0xC0, (byte) 0xAF, 'b', (byte) 0xE2, (byte) 0x82};
+
+        TextPool pool = new TextPool.Builder()
+                .addUtf8Line(ByteBuffer.wrap(rawData), 6, rawData.length)
+                .addUtf8Line(ByteBuffer.wrap(malformedRawData), 0, malformedRawData.length)
+                .build();
+
+        assertThat(pool.getLine(0)).isEqualTo("текст");
+        assertThat(pool.getLine(1)).isEqualTo(new String(malformedRawData, UTF_8));
+    }
+
+    @Test
+    public void testUnpairedSurrogates() {
+        String line = "a\uD83Db\uDE00";
+
+        TextPool pool = TextPool.from(Arrays.asList(line, line.substring(0, 2)));
+
+        assertThat(pool.getLine(0)).isEqualTo(new String(line.getBytes(UTF_8), UTF_8));
+        assertThat(pool.getLine(1)).isEqualTo("a?");
+    }
+
+    @Test
+    public void testEquality() {
+        TextPool first = TextPool.from(Arrays.asList("a", "b", "c"));
+        TextPool second = new TextPool.Builder().addLine(first, 1).addLine("xc", 1, 2).addLine("a", 0, 1).build();
+
+        assertThat(first.lineEquals(1, second, 0)).isTrue();
+        assertThat(first.lineEquals(2, second, 1)).isTrue();
+        assertThat(first.lineEquals(0, second, 1)).isFalse();
+        assertThat(first.getLineHashCode(0)).isEqualTo(second.getLineHashCode(2));
+        assertThat(first.getLines(1, 3)).isEqualTo(second.getLines(0, 2));
+        assertThat(first.getLines(1, 3).hashCode()).isEqualTo(second.getLines(0, 2).hashCode());
+        assertThat(first.getLines(0, 2)).isNotEqualTo(second.getLines(0, 2));
+    }
+}